@@ -1,7 +1,11 @@
 package org.eu.droid_ng.wellbeing
 
 import android.app.Application
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
 import org.eu.droid_ng.wellbeing.lib.BugUtils
+import org.eu.droid_ng.wellbeing.lib.PackageIndex
 import org.eu.droid_ng.wellbeing.lib.WellbeingService
 import kotlin.system.exitProcess
 
@@ -13,8 +17,17 @@ class Wellbeing : Application() {
 		fun getService(): WellbeingService {
 			return application.getServiceInternal()
 		}
+
+		// Calls callback with the service on the main thread, without creating it there.
+		@JvmStatic
+		fun withService(callback: (WellbeingService) -> Unit) {
+			application.withServiceInternal(callback)
+		}
 	}
-	private lateinit var service: WellbeingService
+	@Volatile private var service: WellbeingService? = null
+	private val mainHandler = Handler(Looper.getMainLooper())
+	private lateinit var coreHandler: Handler
+
 	override fun onCreate() {
 		super.onCreate()
 		application = this
@@ -24,10 +37,33 @@ class Wellbeing : Application() {
 			exitProcess(2)
 		}
 
-		service = WellbeingService(this)
+		PackageIndex.get(this) // starts building in the background
+		// The service core (journal, deadlines, settings) is read off the main thread. Whatever
+		// started the process either waits for it in get() or queues behind it in withService().
+		coreHandler = Handler(HandlerThread("WellbeingCore").apply { start() }.looper)
+		coreHandler.post { getServiceInternal() }
 	}
 
 	private fun getServiceInternal(): WellbeingService {
-		return service
+		service?.let { return it }
+		synchronized(this) {
+			service?.let { return it }
+			val s = WellbeingService(this)
+			service = s
+			s.startDeferred()
+			return s
+		}
+	}
+
+	private fun withServiceInternal(callback: (WellbeingService) -> Unit) {
+		val s = service
+		if (s != null) {
+			mainHandler.post { callback(s) }
+		} else {
+			coreHandler.post {
+				val created = getServiceInternal()
+				mainHandler.post { callback(created) }
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -3,10 +3,16 @@ package org.eu.droid_ng.wellbeing.broadcast
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
-import org.eu.droid_ng.wellbeing.lib.WellbeingService
+import org.eu.droid_ng.wellbeing.lib.AlarmMultiplexer
 
 class AlarmFiresBroadcastReceiver : BroadcastReceiver() {
 	override fun onReceive(context: Context?, intent: Intent?) {
-		intent?.identifier?.let { WellbeingService.get().onAlarmFired(it) }
+		val id = intent?.identifier ?: return
+		if (AlarmMultiplexer.ID == id) {
+			val ids = intent.getStringArrayExtra(AlarmMultiplexer.EXTRA_IDS)
+			handOff { it.onWakeupAlarm(ids) }
+		} else {
+			handOff { it.onAlarmFired(id) }
+		}
 	}
-}
\ No newline at end of file
+}
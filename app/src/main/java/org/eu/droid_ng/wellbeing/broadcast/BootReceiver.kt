@@ -3,7 +3,6 @@ package org.eu.droid_ng.wellbeing.broadcast
 import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
-import org.eu.droid_ng.wellbeing.lib.WellbeingService
 
 class BootReceiver : BroadcastReceiver() {
 	override fun onReceive(context: Context, intent: Intent) {
@@ -11,6 +10,6 @@ class BootReceiver : BroadcastReceiver() {
 			/* Make sure no one is trying to fool us */
 			return
 		}
-		WellbeingService.get().onBootCompleted()
+		handOff { it.onBootCompleted() }
 	}
 }
\ No newline at end of file
@@ -0,0 +1,22 @@
+package org.eu.droid_ng.wellbeing.broadcast
+
+import android.content.BroadcastReceiver
+import org.eu.droid_ng.wellbeing.Wellbeing
+import org.eu.droid_ng.wellbeing.lib.WellbeingService
+
+/*
+ * Receivers return right away and hand the work to the service. On a cold start the service
+ * core is created on a background thread first, the main thread only runs the work itself
+ * (the service state is confined to it) and the startup stages the work asks for. goAsync()
+ * keeps the process alive until the work is done.
+ */
+internal fun BroadcastReceiver.handOff(work: (WellbeingService) -> Unit) {
+	val result = goAsync()
+	Wellbeing.withService { s ->
+		try {
+			work(s)
+		} finally {
+			result.finish()
+		}
+	}
+}
@@ -4,11 +4,12 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.widget.Toast
-import org.eu.droid_ng.wellbeing.lib.WellbeingService
+import org.eu.droid_ng.wellbeing.framework.FrameworkBatch
 
 class ManuallyUnsuspendBroadcastReceiver : BroadcastReceiver() {
 	override fun onReceive(context: Context, intent: Intent) {
-		if ("android.intent.action.PACKAGE_UNSUSPENDED_MANUALLY" != intent.action) {
+		if ("android.intent.action.PACKAGE_UNSUSPENDED_MANUALLY" != intent.action &&
+				FrameworkBatch.ACTION_UNSUSPENDED_MANUALLY != intent.action) {
 			/* Make sure no one is trying to fool us */
 			return
 		}
@@ -22,6 +23,6 @@ class ManuallyUnsuspendBroadcastReceiver : BroadcastReceiver() {
 			).show()
 			return
 		}
-		WellbeingService.get().onManuallyUnsuspended(packageName)
+		handOff { it.onManuallyUnsuspended(packageName) }
 	}
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.app.AlarmManager
+import android.app.PendingIntent
+import android.content.Context
+import android.content.Intent
+import org.eu.droid_ng.wellbeing.broadcast.AlarmFiresBroadcastReceiver
+import java.time.Clock
+import java.util.*
+
+/*
+ * Keeps every pending wakeup of the service (schedule triggers, alarm clock, deadlines) in one
+ * sorted timeline and only ever holds a single exact alarm for the earliest of them. Setting an
+ * event to the time it already has is free, and the real alarm is only touched when the head of
+ * the timeline changes.
+ *
+ * The ids due at the head are carried in the alarm intent. If the process died in between,
+ * the events were re-registered for their next occurrence by the time the alarm is delivered,
+ * but we still know which ones fired.
+ */
+class AlarmMultiplexer(
+	private val wakeup: Wakeup,
+	private val clock: Clock,
+	private val onFired: (String) -> Unit
+) {
+	interface Wakeup {
+		fun arm(epochMillis: Long, ids: Array<String>)
+		fun cancel()
+	}
+
+	private class Event(val id: String, val dueMillis: Long)
+
+	companion object {
+		const val ID = "mux"
+		const val EXTRA_IDS = "org.eu.droid_ng.wellbeing.extra.ALARM_IDS"
+	}
+
+	private val byId = HashMap<String, Event>()
+	private val timeline = TreeSet(compareBy<Event> { it.dueMillis }.thenBy { it.id })
+	private var armedMillis: Long? = null
+	private var armedIds: List<String> = emptyList()
+	private var armed = false // an alarm from a previous process might still be pending
+
+	fun set(id: String, epochMillis: Long) {
+		if (byId[id]?.dueMillis == epochMillis) return
+		val e = Event(id, epochMillis)
+		byId.put(id, e)?.let { timeline.remove(it) }
+		timeline.add(e)
+		rearm()
+	}
+
+	fun cancel(id: String) {
+		byId.remove(id)?.let { timeline.remove(it) }
+		rearm()
+	}
+
+	fun contains(id: String): Boolean {
+		return byId.containsKey(id)
+	}
+
+	// Called when the alarm went off. firedIds are the ids the alarm was armed for.
+	fun onWakeup(firedIds: Array<String>?) {
+		val now = clock.millis()
+		val due = LinkedHashSet<String>()
+		firedIds?.let { due.addAll(it) }
+		while (timeline.isNotEmpty() && timeline.first().dueMillis <= now) {
+			val e = timeline.pollFirst()!!
+			byId.remove(e.id)
+			due.add(e.id)
+		}
+		rearm()
+		due.forEach { onFired(it) }
+	}
+
+	private fun rearm() {
+		val head = if (timeline.isEmpty()) null else timeline.first().dueMillis
+		val ids = timeline.takeWhile { it.dueMillis == head }.map { it.id }
+		if (armed && head == armedMillis && ids == armedIds) return
+		armed = true
+		armedMillis = head
+		armedIds = ids
+		if (head == null) {
+			wakeup.cancel()
+		} else {
+			wakeup.arm(head, ids.toTypedArray())
+		}
+	}
+}
+
+class AlarmManagerWakeup(private val context: Context) : AlarmMultiplexer.Wakeup {
+	private val am = context.getSystemService(AlarmManager::class.java)
+
+	private fun getPintent(ids: Array<String>?): PendingIntent {
+		return PendingIntent.getBroadcast(
+			context, 0,
+			Intent(context, AlarmFiresBroadcastReceiver::class.java).addFlags(Intent.FLAG_RECEIVER_FOREGROUND)
+				.setIdentifier(AlarmMultiplexer.ID).putExtra(AlarmMultiplexer.EXTRA_IDS, ids),
+			PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_CANCEL_CURRENT
+		)
+	}
+
+	override fun arm(epochMillis: Long, ids: Array<String>) {
+		ScheduleUtils.setAlarm(context, AlarmMultiplexer.ID, epochMillis, am, getPintent(ids))
+	}
+
+	override fun cancel() {
+		ScheduleUtils.dropAlarm(context, AlarmMultiplexer.ID, am, getPintent(null))
+	}
+}
@@ -0,0 +1,156 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.util.Log
+import android.util.LruCache
+import java.text.CollationKey
+import java.text.Collator
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Consumer
+
+/*
+ * What the app lists show about a package: its label, loaded once, with a precomputed collation
+ * key so sorting doesn't go to the PackageManager or compare raw strings, and its icon, decoded
+ * in the background into a bounded LRU of bitmaps already scaled to list size.
+ *
+ * Labels and collation keys depend on the locale, and everything depends on the installed
+ * package version, so the cache is dropped on locale changes and whenever the package index
+ * changes.
+ */
+class AppCatalog private constructor(private val context: Context) {
+	class App(val packageName: String, val label: String, val sortKey: CollationKey, val info: ApplicationInfo)
+
+	companion object {
+		private const val TAG = "AppCatalog"
+		private const val MAX_ICON_BYTES = 16 * 1024 * 1024
+		@Volatile private var catalog: AppCatalog? = null
+
+		@JvmStatic
+		fun get(context: Context): AppCatalog {
+			return catalog ?: synchronized(this) {
+				catalog ?: AppCatalog(context.applicationContext).also { catalog = it }
+			}
+		}
+	}
+
+	private val pm = context.packageManager
+	private val apps = ConcurrentHashMap<String, App>()
+	@Volatile private var locale: Locale = currentLocale()
+	private val collatorLock = Any()
+	private var collator = Collator.getInstance(locale) // guarded by collatorLock, Collator is not thread safe
+	private val iconSize = context.resources.getDimensionPixelSize(android.R.dimen.app_icon_size)
+	private val icons = object : LruCache<String, Bitmap>(
+		minOf(Runtime.getRuntime().maxMemory() / 16, MAX_ICON_BYTES.toLong()).toInt()) {
+		override fun sizeOf(key: String, value: Bitmap): Int {
+			return value.byteCount
+		}
+	}
+	private val mainHandler = Handler(Looper.getMainLooper())
+	private val iconHandler = Handler(HandlerThread(TAG).apply { start() }.looper)
+	private val pendingIcons = HashMap<String, ArrayList<Consumer<Bitmap?>>>() // main thread only
+
+	init {
+		PackageIndex.get(context).addListener { invalidate() }
+		context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(p0: Context?, p1: Intent?) {
+				invalidate()
+			}
+		}, IntentFilter(Intent.ACTION_LOCALE_CHANGED))
+	}
+
+	private fun currentLocale(): Locale {
+		return context.resources.configuration.locales[0]
+	}
+
+	private fun invalidate() {
+		apps.clear()
+		icons.evictAll()
+	}
+
+	private fun checkLocale() {
+		// the broadcast may arrive after the first redraw in the new locale
+		val l = currentLocale()
+		if (l != locale) {
+			locale = l
+			apps.clear()
+			synchronized(collatorLock) {
+				collator = Collator.getInstance(l)
+			}
+		}
+	}
+
+	fun getApp(packageName: String): App? {
+		checkLocale()
+		apps[packageName]?.let { return it }
+		val info = try {
+			PackageIndex.get(context).getEntry(packageName)?.info
+					?: WellbeingService.get().getApplicationInfo(packageName)
+		} catch (e: PackageManager.NameNotFoundException) {
+			Log.e(TAG, "Failed to get app info for $packageName")
+			return null // don't cache, it might get installed
+		}
+		return makeApp(info)
+	}
+
+	// Apps of all entries, labels that are not cached yet are loaded here.
+	fun getApps(entries: List<PackageIndex.Entry>): List<App> {
+		checkLocale()
+		return entries.map { apps[it.packageName] ?: makeApp(it.info) }
+	}
+
+	private fun makeApp(info: ApplicationInfo): App {
+		val label = pm.getApplicationLabel(info).toString()
+		val key = synchronized(collatorLock) { collator.getCollationKey(label) }
+		val app = App(info.packageName, label, key, info)
+		apps[info.packageName] = app
+		return app
+	}
+
+	fun getLabel(packageName: String): String {
+		return getApp(packageName)?.label ?: packageName
+	}
+
+	// Calls callback on the main thread, right away if the icon is cached. Call from the main thread.
+	fun loadIcon(app: App, callback: Consumer<Bitmap?>) {
+		icons.get(app.packageName)?.let {
+			callback.accept(it)
+			return
+		}
+		pendingIcons[app.packageName]?.let {
+			it.add(callback)
+			return
+		}
+		pendingIcons[app.packageName] = arrayListOf(callback)
+		iconHandler.post {
+			val icon = try {
+				decodeIcon(app.info)
+			} catch (e: Exception) {
+				Log.e(TAG, "Failed to load icon of ${app.packageName}", e)
+				null
+			}
+			if (icon != null) icons.put(app.packageName, icon)
+			mainHandler.post {
+				pendingIcons.remove(app.packageName)?.forEach { it.accept(icon) }
+			}
+		}
+	}
+
+	private fun decodeIcon(info: ApplicationInfo): Bitmap {
+		val d = pm.getApplicationIcon(info)
+		val b = Bitmap.createBitmap(iconSize, iconSize, Bitmap.Config.ARGB_8888)
+		d.setBounds(0, 0, iconSize, iconSize)
+		d.draw(Canvas(b))
+		return b
+	}
+}
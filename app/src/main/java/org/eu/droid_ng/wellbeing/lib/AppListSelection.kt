@@ -0,0 +1,63 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.Context
+import android.content.SharedPreferences
+
+/*
+ * Parsed view of one package list from the "appLists" preferences, optionally inverted by a
+ * boolean in the "service" preferences (focus mode whitelist). The list is read once and then
+ * kept until one of the two preferences changes, instead of being fetched again every time
+ * focus mode or manual suspend is toggled.
+ */
+class AppListSelection(context: Context, private val listKey: String, private val invertKey: String?) {
+	private class Snapshot(val members: Set<String>?, val inverted: Boolean)
+
+	private val lists = context.getSharedPreferences("appLists", 0)
+	private val settings = context.getSharedPreferences("service", 0)
+	@Volatile private var snapshot: Snapshot? = null
+
+	// SharedPreferences only keeps weak references to listeners, so we have to hold on to it.
+	private val listener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+		if (key == null || key == listKey || key == invertKey) snapshot = null
+	}
+
+	init {
+		lists.registerOnSharedPreferenceChangeListener(listener)
+		if (invertKey != null) settings.registerOnSharedPreferenceChangeListener(listener)
+	}
+
+	private fun get(): Snapshot {
+		return snapshot ?: Snapshot(
+			lists.getStringSet(listKey, null)?.let { HashSet(it) },
+			invertKey != null && settings.getBoolean(invertKey, false)
+		).also { snapshot = it }
+	}
+
+	// false if the list was never saved by the settings UI
+	fun isConfigured(): Boolean {
+		return get().members != null
+	}
+
+	fun isInverted(): Boolean {
+		return get().inverted
+	}
+
+	// Raw list as stored, without applying the inverted flag.
+	fun getMembers(): Set<String> {
+		return get().members ?: emptySet()
+	}
+
+	fun contains(packageName: String): Boolean {
+		val s = get()
+		return (s.members?.contains(packageName) ?: false) != s.inverted
+	}
+
+	// Packages out of universe this selection applies to, computed as one set operation.
+	fun effectiveMembers(universe: Collection<String>): Set<String> {
+		val s = get()
+		val members = s.members ?: return if (s.inverted) HashSet(universe) else emptySet()
+		val result = HashSet(universe)
+		if (s.inverted) result.removeAll(members) else result.retainAll(members)
+		return result
+	}
+}
@@ -0,0 +1,164 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.util.AtomicFile
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.time.Clock
+import java.util.*
+
+/*
+ * One timeline for every wall-clock deadline the service has to honor (focus mode breaks,
+ * per-app focus mode breaks, app timer breaks). Deadlines are ordered by due time, so
+ * scheduling and cancelling are O(log n), and only the earliest one is handed to arm()
+ * as a single wakeup. The timeline is written to disk on every change, so a deadline
+ * survives the process being killed.
+ */
+class DeadlineScheduler(
+	file: File?,
+	private val clock: Clock,
+	private val arm: (Long?) -> Unit,
+	private val onDeadline: (Deadline) -> Unit
+) {
+	enum class Kind {
+		FOCUS_MODE_BREAK, // packageNames is always empty
+		FOCUS_MODE_APP_BREAK,
+		APP_TIMER_BREAK
+	}
+
+	class Deadline(val kind: Kind, val packageNames: Array<String>, val dueMillis: Long) {
+		val key: String = keyOf(kind, packageNames)
+	}
+
+	companion object {
+		private const val TAG = "DeadlineScheduler"
+		private const val VERSION = 1
+
+		private fun keyOf(kind: Kind, packageNames: Array<String>): String {
+			return kind.name + "//" + packageNames.joinToString(":")
+		}
+	}
+
+	private val atomicFile: AtomicFile? = file?.let { AtomicFile(it) }
+	private val byKey = HashMap<String, Deadline>()
+	private val timeline = TreeSet(compareBy<Deadline> { it.dueMillis }.thenBy { it.key })
+	private var armedMillis: Long? = null
+	private var armed = false
+
+	init {
+		load()
+		rearm()
+	}
+
+	fun schedule(kind: Kind, packageNames: Array<String>, dueMillis: Long) {
+		val d = Deadline(kind, packageNames, dueMillis)
+		byKey.put(d.key, d)?.let { timeline.remove(it) }
+		timeline.add(d)
+		onTimelineChanged()
+	}
+
+	fun cancel(kind: Kind, packageNames: Array<String>): Boolean {
+		val d = byKey.remove(keyOf(kind, packageNames)) ?: return false
+		timeline.remove(d)
+		onTimelineChanged()
+		return true
+	}
+
+	fun cancelAll(kind: Kind) {
+		val dropped = byKey.values.filter { it.kind == kind }
+		if (dropped.isEmpty()) return
+		dropped.forEach {
+			byKey.remove(it.key)
+			timeline.remove(it)
+		}
+		onTimelineChanged()
+	}
+
+	fun contains(kind: Kind, packageNames: Array<String>): Boolean {
+		return byKey.containsKey(keyOf(kind, packageNames))
+	}
+
+	// Pops and dispatches every deadline that is due. Safe to call at any time, for example
+	// when the wakeup fires or right after a cold start.
+	fun fireDue() {
+		val now = clock.millis()
+		val due = ArrayList<Deadline>()
+		while (timeline.isNotEmpty() && timeline.first().dueMillis <= now) {
+			val d = timeline.pollFirst()!!
+			byKey.remove(d.key)
+			due.add(d)
+		}
+		if (due.isEmpty()) {
+			rearm()
+			return
+		}
+		onTimelineChanged()
+		due.forEach { onDeadline(it) }
+	}
+
+	private fun onTimelineChanged() {
+		save()
+		rearm()
+	}
+
+	private fun rearm() {
+		val next = if (timeline.isEmpty()) null else timeline.first().dueMillis
+		if (armed && next == armedMillis) return
+		armed = true
+		armedMillis = next
+		arm(next)
+	}
+
+	private fun load() {
+		if (atomicFile == null) return
+		try {
+			DataInputStream(atomicFile.openRead().buffered()).use { i ->
+				if (i.readInt() != VERSION) {
+					Log.e(TAG, "Dropping deadlines with unknown version")
+					return
+				}
+				for (n in 0 until i.readInt()) {
+					val kind = Kind.valueOf(i.readUTF())
+					val packageNames = Array(i.readInt()) { i.readUTF() }
+					val d = Deadline(kind, packageNames, i.readLong())
+					byKey[d.key] = d
+					timeline.add(d)
+				}
+			}
+		} catch (ignored: FileNotFoundException) {
+		} catch (e: Exception) {
+			Log.e(TAG, "Failed to load deadlines", e)
+			byKey.clear()
+			timeline.clear()
+		}
+	}
+
+	private fun save() {
+		if (atomicFile == null) return
+		val o = try {
+			atomicFile.startWrite()
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to save deadlines", e)
+			return
+		}
+		try {
+			val d = DataOutputStream(o.buffered())
+			d.writeInt(VERSION)
+			d.writeInt(timeline.size)
+			for (e in timeline) {
+				d.writeUTF(e.kind.name)
+				d.writeInt(e.packageNames.size)
+				e.packageNames.forEach { d.writeUTF(it) }
+				d.writeLong(e.dueMillis)
+			}
+			d.flush()
+			atomicFile.finishWrite(o)
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to save deadlines", e)
+			atomicFile.failWrite(o)
+		}
+	}
+}
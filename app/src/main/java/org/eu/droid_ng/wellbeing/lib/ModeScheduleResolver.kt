@@ -0,0 +1,177 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.Context
+import java.time.Clock
+import java.time.ZonedDateTime
+
+/*
+ * Decides whether a mode (bedtime mode, focus mode) should be on according to its schedules.
+ * All triggers of a mode are merged into one predicate: at least one enabled trigger is in its
+ * window, has its charger (if it needs one) and was not ended early by the alarm clock.
+ * Triggers without extra conditions are merged into a single WeeklySchedule up front, so
+ * overlapping or back-to-back windows are one interval.
+ *
+ * Only real flips of that predicate are reported, once, and the last reported value is
+ * persisted, so overlapping windows no longer turn the mode on twice or off too early, and a
+ * flip that happened while the process was dead is caught up on the next start.
+ *
+ * Every mode keeps a single event in the alarm multiplexer for its next possible flip.
+ */
+class ModeScheduleResolver(
+	private val store: Store,
+	private val alarms: AlarmMultiplexer,
+	private val clock: Clock,
+	private val isCharging: () -> Boolean,
+	private val onEdge: (String, Boolean) -> Unit
+) {
+	// Last reported value per mode and alarm-clock suppression per trigger.
+	interface Store {
+		fun isActive(modeId: String): Boolean
+		fun setActive(modeId: String, active: Boolean)
+		fun getSuppressedUntil(iid: String): Long
+		fun setSuppressedUntil(iid: String, epochMillis: Long)
+		fun retainOnly(modeIds: Set<String>, iids: Set<String>)
+	}
+
+	class PrefsStore(context: Context) : Store {
+		private val prefs = context.getSharedPreferences("sched_state", 0)
+
+		override fun isActive(modeId: String): Boolean {
+			return prefs.getBoolean(KEY_ACTIVE + modeId, false)
+		}
+
+		override fun setActive(modeId: String, active: Boolean) {
+			prefs.edit().putBoolean(KEY_ACTIVE + modeId, active).apply()
+		}
+
+		override fun getSuppressedUntil(iid: String): Long {
+			return prefs.getLong(KEY_SUPPRESS + iid, 0L)
+		}
+
+		override fun setSuppressedUntil(iid: String, epochMillis: Long) {
+			prefs.edit().putLong(KEY_SUPPRESS + iid, epochMillis).apply()
+		}
+
+		override fun retainOnly(modeIds: Set<String>, iids: Set<String>) {
+			val e = prefs.edit()
+			prefs.all.keys.forEach { key ->
+				if (key.startsWith(KEY_ACTIVE) && !modeIds.contains(key.substring(KEY_ACTIVE.length))) {
+					e.remove(key)
+				} else if (key.startsWith(KEY_SUPPRESS) && !iids.contains(key.substring(KEY_SUPPRESS.length))) {
+					e.remove(key)
+				}
+			}
+			e.apply()
+		}
+	}
+
+	class MemoryStore : Store {
+		private val active = HashMap<String, Boolean>()
+		private val suppressed = HashMap<String, Long>()
+
+		override fun isActive(modeId: String): Boolean {
+			return active.getOrDefault(modeId, false)
+		}
+
+		override fun setActive(modeId: String, active: Boolean) {
+			this.active[modeId] = active
+		}
+
+		override fun getSuppressedUntil(iid: String): Long {
+			return suppressed.getOrDefault(iid, 0L)
+		}
+
+		override fun setSuppressedUntil(iid: String, epochMillis: Long) {
+			suppressed[iid] = epochMillis
+		}
+
+		override fun retainOnly(modeIds: Set<String>, iids: Set<String>) {
+			active.keys.retainAll(modeIds)
+			suppressed.keys.retainAll(iids)
+		}
+	}
+
+	private class Mode(
+		val id: String,
+		val always: WeeklySchedule, // union of triggers without conditions
+		val charger: WeeklySchedule, // union of triggers that only need a charger
+		val alarmEnded: List<TimeChargerTriggerCondition> // suppressed one window at a time
+	)
+
+	companion object {
+		const val ALARM_PREFIX = "mode::"
+		private const val KEY_ACTIVE = "active::"
+		private const val KEY_SUPPRESS = "suppress::"
+	}
+
+	private var modes: Map<String, Mode> = emptyMap()
+
+	fun setTriggers(triggers: Collection<Trigger>) {
+		val m = HashMap<String, Mode>()
+		triggers.filterIsInstance<TimeChargerTriggerCondition>().filter { it.enabled }.groupBy { it.id }.forEach { (id, t) ->
+			m[id] = Mode(id,
+				WeeklySchedule.union(t.filter { !it.needCharger && !it.endOnAlarm }.map { it.schedule }),
+				WeeklySchedule.union(t.filter { it.needCharger && !it.endOnAlarm }.map { it.schedule }),
+				t.filter { it.endOnAlarm })
+		}
+		// Forget modes that have no schedule anymore, without touching the mode itself.
+		val iids = m.values.flatMap { mode -> mode.alarmEnded.map { it.iid } }.toHashSet()
+		store.retainOnly(m.keys, iids)
+		modes.keys.filterNot { m.containsKey(it) }.forEach { alarms.cancel(ALARM_PREFIX + it) }
+		modes = m
+		evaluate()
+	}
+
+	// The alarm clock went off: end every alarm-ended window that is running right now.
+	fun onAlarmClock() {
+		val now = ZonedDateTime.now(clock)
+		for (mode in modes.values) {
+			for (t in mode.alarmEnded) {
+				if (!t.schedule.isActive(now)) continue
+				t.schedule.nextEnd(now)?.let { store.setSuppressedUntil(t.iid, it.toInstant().toEpochMilli()) }
+			}
+		}
+		evaluate()
+	}
+
+	// Re-check every mode (after a wakeup, charger change or clock change) and report flips.
+	fun evaluate() {
+		val now = ZonedDateTime.now(clock)
+		val nowMillis = now.toInstant().toEpochMilli()
+		val charging = isCharging()
+		val flips = ArrayList<Pair<String, Boolean>>()
+		for (mode in modes.values) {
+			val active = mode.always.isActive(now) || (charging && mode.charger.isActive(now)) ||
+					mode.alarmEnded.any { t ->
+						t.schedule.isActive(now) && (!t.needCharger || charging) &&
+								store.getSuppressedUntil(t.iid) <= nowMillis
+					}
+			if (active != store.isActive(mode.id)) {
+				store.setActive(mode.id, active)
+				flips.add(Pair(mode.id, active))
+			}
+			arm(mode, now)
+		}
+		flips.forEach { onEdge(it.first, it.second) }
+	}
+
+	private fun arm(mode: Mode, now: ZonedDateTime) {
+		// Charger windows are armed even while unplugged: power broadcasts only reach a running
+		// process, so the wakeup at the window edge is what re-checks the charger after we died.
+		var next: ZonedDateTime? = null
+		fun consider(s: WeeklySchedule) {
+			val t = s.nextTransition(now)?.time ?: return
+			val n = next
+			if (n == null || t.isBefore(n)) next = t
+		}
+		consider(mode.always)
+		consider(mode.charger)
+		mode.alarmEnded.forEach { consider(it.schedule) }
+		val n = next
+		if (n == null) {
+			alarms.cancel(ALARM_PREFIX + mode.id)
+		} else {
+			alarms.set(ALARM_PREFIX + mode.id, n.toInstant().toEpochMilli())
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.util.Log
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.function.Consumer
+
+/*
+ * Process-wide index of installed packages. It is built once in the background and then kept
+ * up to date from package broadcasts, so nobody has to pull every ApplicationInfo over binder
+ * each time focus mode is toggled or an app list is shown.
+ *
+ * Main thread code gets the entries through getEntriesAsync() or getPackageNamesAsync(), the
+ * blocking getters are for background threads.
+ */
+class PackageIndex private constructor(private val context: Context) {
+	class Entry(
+		val packageName: String,
+		val flags: Int,
+		val uid: Int,
+		val category: Int,
+		val hasLauncherActivity: Boolean,
+		val info: ApplicationInfo // queried without GET_META_DATA
+	) {
+		fun isUserApp(): Boolean {
+			return (flags and (ApplicationInfo.FLAG_UPDATED_SYSTEM_APP or ApplicationInfo.FLAG_SYSTEM)) < 1
+		}
+	}
+
+	companion object {
+		private const val TAG = "PackageIndex"
+		@Volatile private var index: PackageIndex? = null
+
+		@JvmStatic
+		fun get(context: Context): PackageIndex {
+			return index ?: synchronized(this) {
+				index ?: PackageIndex(context.applicationContext).also { index = it }
+			}
+		}
+	}
+
+	private val pm = context.packageManager
+	// systemApp should always be true, only used for development purposes.
+	private val queryFlags = if ((context.applicationInfo.flags and
+			(ApplicationInfo.FLAG_UPDATED_SYSTEM_APP or ApplicationInfo.FLAG_SYSTEM)) > 1)
+		Utils.PACKAGE_MANAGER_MATCH_INSTANT else 0
+	private val lock = Any()
+	private val built = CountDownLatch(1)
+	private var entries: HashMap<String, Entry>? = null // guarded by lock, null until built
+	private val listeners = CopyOnWriteArrayList<Runnable>()
+	private val handler: Handler
+	private val mainHandler = Handler(Looper.getMainLooper())
+
+	init {
+		val thread = HandlerThread(TAG)
+		thread.start()
+		handler = Handler(thread.looper)
+		val filter = IntentFilter()
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED)
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED)
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED)
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED)
+		filter.addDataScheme("package")
+		context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(c: Context, intent: Intent) {
+				val packageName = intent.data?.schemeSpecificPart ?: return
+				if (Intent.ACTION_PACKAGE_REMOVED == intent.action &&
+						!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+					onPackageRemoved(packageName)
+				} else {
+					onPackageUpdated(packageName)
+				}
+			}
+		}, filter, null, handler)
+		handler.post { build() }
+	}
+
+	fun addListener(listener: Runnable) {
+		listeners.add(listener)
+	}
+
+	fun removeListener(listener: Runnable) {
+		listeners.remove(listener)
+	}
+
+	// Blocks until the index is built.
+	fun getEntries(): List<Entry> {
+		built.await()
+		synchronized(lock) {
+			return ArrayList(entries!!.values)
+		}
+	}
+
+	// Blocks until the index is built.
+	fun getPackageNames(): Set<String> {
+		built.await()
+		synchronized(lock) {
+			return HashSet(entries!!.keys)
+		}
+	}
+
+	// Calls callback with all entries on the index thread once the index is built, so it can do
+	// more background work (labels, sorting) before handing the result to the main thread.
+	fun getEntriesAsync(callback: Consumer<List<Entry>>) {
+		handler.post { callback.accept(getEntries()) } // build() was posted first
+	}
+
+	// Calls callback with all package names on the main thread: right away if the index is
+	// built, once it is otherwise. For main thread callers that can't wait for the build.
+	fun getPackageNamesAsync(callback: Consumer<Set<String>>) {
+		if (built.count == 0L) {
+			callback.accept(getPackageNames())
+		} else {
+			handler.post { // build() was posted first
+				val names = getPackageNames()
+				mainHandler.post { callback.accept(names) }
+			}
+		}
+	}
+
+	// Never blocks, null if the package is unknown or the index is not built yet.
+	fun getEntry(packageName: String): Entry? {
+		synchronized(lock) {
+			return entries?.get(packageName)
+		}
+	}
+
+	private fun build() {
+		val launchable = queryLauncherActivities(null)
+		val m = HashMap<String, Entry>()
+		for (info in queryInstalledApplications()) {
+			m[info.packageName] = makeEntry(info, launchable.contains(info.packageName))
+		}
+		synchronized(lock) {
+			entries = m
+		}
+		built.countDown()
+		notifyListeners()
+	}
+
+	private fun onPackageUpdated(packageName: String) {
+		val info = try {
+			queryApplicationInfo(packageName)
+		} catch (e: PackageManager.NameNotFoundException) {
+			Log.w(TAG, "$packageName vanished before we could index it")
+			onPackageRemoved(packageName)
+			return
+		}
+		val e = makeEntry(info, queryLauncherActivities(packageName).isNotEmpty())
+		synchronized(lock) {
+			entries?.put(packageName, e)
+		}
+		notifyListeners()
+	}
+
+	private fun onPackageRemoved(packageName: String) {
+		synchronized(lock) {
+			entries?.remove(packageName)
+		}
+		notifyListeners()
+	}
+
+	private fun notifyListeners() {
+		listeners.forEach { it.run() }
+	}
+
+	private fun makeEntry(info: ApplicationInfo, hasLauncherActivity: Boolean): Entry {
+		return Entry(info.packageName, info.flags, info.uid, info.category, hasLauncherActivity, info)
+	}
+
+	private fun queryLauncherActivities(packageName: String?): Set<String> {
+		val intent = Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER).setPackage(packageName)
+		return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+			pm.queryIntentActivities(intent, PackageManager.ResolveInfoFlags.of(0))
+		} else {
+			@Suppress("deprecation")
+			pm.queryIntentActivities(intent, 0)
+		}.mapTo(HashSet()) { it.activityInfo.packageName }
+	}
+
+	private fun queryInstalledApplications(): List<ApplicationInfo> {
+		return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+			pm.getInstalledApplications(PackageManager.ApplicationInfoFlags.of(queryFlags.toLong()))
+		} else {
+			@Suppress("deprecation")
+			pm.getInstalledApplications(queryFlags)
+		}
+	}
+
+	@Throws(PackageManager.NameNotFoundException::class)
+	private fun queryApplicationInfo(packageName: String): ApplicationInfo {
+		return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+			pm.getApplicationInfo(packageName, PackageManager.ApplicationInfoFlags.of(queryFlags.toLong()))
+		} else {
+			@Suppress("deprecation")
+			pm.getApplicationInfo(packageName, queryFlags)
+		}
+	}
+}
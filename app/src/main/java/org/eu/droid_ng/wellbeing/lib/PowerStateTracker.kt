@@ -0,0 +1,40 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.BatteryManager
+
+/*
+ * Tracks whether the device is charging (USB or AC, like the charger condition in schedules
+ * always did) from power connected/disconnected broadcasts. ACTION_BATTERY_CHANGED is only
+ * read once per plug event to find out the plug type, and the listener is only called when
+ * the charging state actually flips, so battery level and temperature updates cost nothing.
+ */
+class PowerStateTracker(private val context: Context, private val onChanged: (Boolean) -> Unit) {
+	@Volatile var isCharging: Boolean = readCharging()
+		private set
+
+	init {
+		val filter = IntentFilter()
+		filter.addAction(Intent.ACTION_POWER_CONNECTED)
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED)
+		context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(p0: Context?, p1: Intent?) {
+				val charging = Intent.ACTION_POWER_CONNECTED == p1?.action && readCharging()
+				if (charging == isCharging) return
+				isCharging = charging
+				onChanged(charging)
+			}
+		}, filter)
+	}
+
+	private fun readCharging(): Boolean {
+		val batteryStatus: Intent? = context.registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+
+		val chargePlug: Int = batteryStatus?.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1) ?: -1
+		return chargePlug == BatteryManager.BATTERY_PLUGGED_USB ||
+				chargePlug == BatteryManager.BATTERY_PLUGGED_AC
+	}
+}
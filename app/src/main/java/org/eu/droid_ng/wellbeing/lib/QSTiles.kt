@@ -9,7 +9,7 @@ class FocusModeQSTile : TileService() {
 	override fun onStartListening() {
 		super.onStartListening()
 		val tw = WellbeingService.get()
-		val state = tw.getState()
+		val state = tw.getState(false) // global flags only, no per-app scan
 
 		val tile = qsTile
 		tile.state = if (state.isFocusModeEnabled()) STATE_ACTIVE else STATE_INACTIVE
@@ -21,7 +21,7 @@ class FocusModeQSTile : TileService() {
 		super.onClick()
 
 		val tw = WellbeingService.get()
-		val state = tw.getState()
+		val state = tw.getState(false) // global flags only, no per-app scan
 		if (state.isFocusModeEnabled())
 			tw.disableFocusMode()
 		else
@@ -33,7 +33,7 @@ class BedtimeModeQSTile : TileService() {
 	override fun onStartListening() {
 		super.onStartListening()
 		val tw = WellbeingService.get()
-		val state = tw.getState()
+		val state = tw.getState(false) // global flags only, no per-app scan
 
 		val tile = qsTile
 		tile.state = if (state.isBedtimeModeEnabled()) STATE_ACTIVE else STATE_INACTIVE
@@ -45,7 +45,7 @@ class BedtimeModeQSTile : TileService() {
 		super.onClick()
 
 		val tw = WellbeingService.get()
-		val state = tw.getState()
+		val state = tw.getState(false) // global flags only, no per-app scan
 		tw.setBedtimeMode(!state.isBedtimeModeEnabled())
 	}
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.Context
+import org.eu.droid_ng.wellbeing.lib.BugUtils.Companion.BUG
+import org.json.JSONException
+import org.json.JSONObject
+
+/*
+ * Schedule triggers, stored one JSON record per trigger (keyed by iid) in the "sched"
+ * preferences, next to a format version. Records are parsed once per process; changing the
+ * triggers of one mode only writes the records that actually changed.
+ *
+ * Version 1 (no version key) was one StringSet of ";;"-joined values, it is migrated on first
+ * load. Entries that fail to parse are reported and dropped instead of crashing the service.
+ */
+class ScheduleStore(context: Context) {
+	companion object {
+		private const val VERSION = 2
+		private const val KEY_VERSION = "version"
+		private const val KEY_LEGACY = "triggers"
+		private const val RECORD_PREFIX = "t:"
+
+		private fun weekdaysToBits(weekdays: BooleanArray): Int {
+			var bits = 0; for (i in weekdays.indices) if (weekdays[i]) bits = bits or (1 shl i) // boolean[] -> bitmask
+			return bits
+		}
+
+		private fun bitsToWeekdays(bits: Int): BooleanArray {
+			val bools = BooleanArray(7); for (i in bools.indices) if (bits and (1 shl i) != 0) bools[i] = true // bitmask -> boolean[]
+			return bools
+		}
+	}
+
+	private val prefs = context.getSharedPreferences("sched", 0)
+	private var records: HashMap<String, Pair<Trigger, String>>? = null // iid -> trigger, encoded record
+
+	fun getTriggers(): Set<Trigger> {
+		return load().values.mapTo(HashSet()) { it.first }
+	}
+
+	fun upsert(trigger: Trigger) {
+		val encoded = encode(trigger) ?: return
+		val m = load()
+		if (m[trigger.iid]?.second == encoded) return
+		m[trigger.iid] = Pair(trigger, encoded)
+		prefs.edit().putString(RECORD_PREFIX + trigger.iid, encoded).apply()
+	}
+
+	fun delete(iid: String) {
+		if (load().remove(iid) == null) return
+		prefs.edit().remove(RECORD_PREFIX + iid).apply()
+	}
+
+	// Make the triggers with this id exactly triggersIn, touching only what changed.
+	fun replaceForId(id: String, triggersIn: Array<out Trigger>) {
+		val keep = triggersIn.mapTo(HashSet()) { it.iid }
+		load().values.filter { it.first.id == id && !keep.contains(it.first.iid) }
+			.forEach { delete(it.first.iid) }
+		triggersIn.forEach { upsert(it) }
+	}
+
+	private fun load(): HashMap<String, Pair<Trigger, String>> {
+		records?.let { return it }
+		if (prefs.getInt(KEY_VERSION, 1) < VERSION) {
+			migrateFromV1()
+		}
+		val m = HashMap<String, Pair<Trigger, String>>()
+		prefs.all.forEach { (key, value) ->
+			if (!key.startsWith(RECORD_PREFIX) || value !is String) return@forEach
+			decode(value)?.let { m[it.iid] = Pair(it, value) }
+		}
+		records = m
+		return m
+	}
+
+	private fun migrateFromV1() {
+		val e = prefs.edit()
+		prefs.getStringSet(KEY_LEGACY, null)?.forEach { raw ->
+			val t = decodeV1(raw) ?: return@forEach
+			encode(t)?.let { e.putString(RECORD_PREFIX + t.iid, it) }
+		}
+		e.remove(KEY_LEGACY).putInt(KEY_VERSION, VERSION).apply()
+	}
+
+	private fun decodeV1(raw: String): Trigger? {
+		val values = raw.split(";;")
+		try {
+			if (values[0] == "time" && values.size >= 11) {
+				return TimeChargerTriggerCondition(values[1], values[2], values[3].toBooleanStrict(),
+					values[4].toInt(), values[5].toInt(), values[6].toInt(), values[7].toInt(),
+					bitsToWeekdays(values[8].toInt()), values[9].toBooleanStrict(), values[10].toBooleanStrict())
+			}
+		} catch (e: IllegalArgumentException) {
+			// fall through, NumberFormatException is one too
+		}
+		BUG("dropping invalid trigger $raw")
+		return null
+	}
+
+	private fun encode(trigger: Trigger): String? {
+		return when (trigger) {
+			is TimeChargerTriggerCondition -> JSONObject()
+				.put("type", "time")
+				.put("id", trigger.id)
+				.put("iid", trigger.iid)
+				.put("enabled", trigger.enabled)
+				.put("startHour", trigger.startHour)
+				.put("startMinute", trigger.startMinute)
+				.put("endHour", trigger.endHour)
+				.put("endMinute", trigger.endMinute)
+				.put("weekdays", weekdaysToBits(trigger.weekdays))
+				.put("needCharger", trigger.needCharger)
+				.put("endOnAlarm", trigger.endOnAlarm)
+				.toString()
+			else -> {
+				BUG("unknown trigger ${trigger::class.qualifiedName}")
+				null
+			}
+		}
+	}
+
+	private fun decode(raw: String): Trigger? {
+		try {
+			val o = JSONObject(raw)
+			when (o.getString("type")) {
+				"time" -> return TimeChargerTriggerCondition(o.getString("id"), o.getString("iid"),
+					o.getBoolean("enabled"), o.getInt("startHour"), o.getInt("startMinute"),
+					o.getInt("endHour"), o.getInt("endMinute"), bitsToWeekdays(o.getInt("weekdays")),
+					o.getBoolean("needCharger"), o.getBoolean("endOnAlarm"))
+			}
+		} catch (e: JSONException) {
+			// fall through
+		} catch (e: IllegalArgumentException) {
+			// invalid time window
+		}
+		BUG("dropping invalid trigger $raw")
+		return null
+	}
+}
@@ -0,0 +1,32 @@
+package org.eu.droid_ng.wellbeing.lib
+
+/*
+ * One piece of service startup that only has to happen once, either when someone needs it or
+ * when the deferred startup gets to it, whichever comes first. ensure() blocks until the stage
+ * is done, so callers never see it half way. When it started, how long it took and on which
+ * thread are kept in memory for diagnostics, nothing is logged.
+ */
+class StartupStage(val name: String, private val block: () -> Unit) {
+	class Timing(val name: String, val startNanos: Long, val durationNanos: Long, val thread: String)
+
+	@Volatile var timing: Timing? = null // null until done
+		private set
+	private var running = false
+
+	fun isDone(): Boolean {
+		return timing != null
+	}
+
+	@Synchronized
+	fun ensure() {
+		if (timing != null || running) return // running: the stage itself got here again
+		running = true
+		val t0 = System.nanoTime()
+		try {
+			block()
+		} finally {
+			running = false
+		}
+		timing = Timing(name, t0, System.nanoTime() - t0, Thread.currentThread().name)
+	}
+}
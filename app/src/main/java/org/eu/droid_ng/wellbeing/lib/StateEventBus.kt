@@ -0,0 +1,51 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/*
+ * What changed in one onStateChanged(). changedMask has a bit set for every State flag that
+ * changed, globally or for one of packageNames (the packages whose per-app state changed).
+ */
+class StateEvent(
+	val oldState: State,
+	val newState: State,
+	val changedMask: Int,
+	val packageNames: Set<String>
+) {
+	fun hasChanged(mask: Int): Boolean {
+		return (changedMask and mask) != 0
+	}
+}
+
+/*
+ * Delivers StateEvents to subscribers whose mask overlaps the changed flags. Events are
+ * delivered on the thread that published them (the main thread), subscribing and
+ * unsubscribing is safe from anywhere.
+ */
+class StateEventBus {
+	fun interface Subscriber {
+		fun onStateEvent(event: StateEvent)
+	}
+
+	private class Subscription(val mask: Int, val subscriber: Subscriber)
+
+	companion object {
+		const val ALL = -1
+	}
+
+	private val subscriptions = CopyOnWriteArrayList<Subscription>()
+
+	fun subscribe(mask: Int, subscriber: Subscriber) {
+		subscriptions.add(Subscription(mask, subscriber))
+	}
+
+	fun unsubscribe(subscriber: Subscriber) {
+		subscriptions.removeIf { it.subscriber === subscriber }
+	}
+
+	fun publish(event: StateEvent) {
+		for (s in subscriptions) {
+			if (event.hasChanged(s.mask)) s.subscriber.onStateEvent(event)
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.util.AtomicFile
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.FileOutputStream
+import java.io.IOException
+
+/*
+ * Append-only journal of the service state that only lives in memory (global focus/bedtime
+ * flags and per-app state). Every transition is appended as a small record, and once enough
+ * records piled up the file is rewritten as a snapshot of the current state. Restoring is one
+ * sequential read of that file, so after the process was killed we know exactly which
+ * packages we suspended and why.
+ *
+ * The journal keeps its own copy of the state to skip writes that change nothing and to
+ * write snapshots without asking the service.
+ */
+class StateJournal(file: File) {
+	companion object {
+		private const val TAG = "StateJournal"
+		private const val MAGIC = 0x574a4e4c // "WJNL"
+		private const val VERSION = 1
+		private const val OP_GLOBAL: Byte = 1
+		private const val OP_APP: Byte = 2
+		private const val COMPACT_THRESHOLD = 128
+	}
+
+	private val atomicFile = AtomicFile(file)
+	private var out: DataOutputStream? = null
+	private var records = 0
+
+	var globalState = 0
+		private set
+	private val appStates = HashMap<String, Int>()
+
+	init {
+		val clean = restore()
+		if (!clean || records > COMPACT_THRESHOLD) {
+			compact()
+		}
+	}
+
+	fun getAppStates(): Map<String, Int> {
+		return appStates
+	}
+
+	fun setGlobalState(value: Int) {
+		if (globalState == value) return
+		globalState = value
+		append {
+			it.writeByte(OP_GLOBAL.toInt())
+			it.writeInt(value)
+		}
+	}
+
+	fun setAppState(packageName: String, value: Int) {
+		if (appStates.getOrDefault(packageName, 0) == value) return
+		if (value == 0) appStates.remove(packageName) else appStates[packageName] = value
+		append {
+			it.writeByte(OP_APP.toInt())
+			it.writeUTF(packageName)
+			it.writeInt(value)
+		}
+	}
+
+	// Returns false if the file was damaged (for example a record torn by process death).
+	private fun restore(): Boolean {
+		try {
+			DataInputStream(atomicFile.openRead().buffered()).use { i ->
+				if (i.readInt() != MAGIC || i.readInt() != VERSION) {
+					Log.e(TAG, "Dropping journal with unknown format")
+					return false
+				}
+				while (true) {
+					val op = try {
+						i.readByte()
+					} catch (e: EOFException) {
+						return true
+					}
+					when (op) {
+						OP_GLOBAL -> globalState = i.readInt()
+						OP_APP -> {
+							val packageName = i.readUTF()
+							val value = i.readInt()
+							if (value == 0) appStates.remove(packageName) else appStates[packageName] = value
+						}
+						else -> {
+							Log.e(TAG, "Unknown journal record $op, dropping the rest")
+							return false
+						}
+					}
+					records++
+				}
+			}
+		} catch (e: FileNotFoundException) {
+			return false
+		} catch (e: EOFException) {
+			Log.w(TAG, "Journal ends with a torn record")
+			return false
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to read journal", e)
+			return false
+		}
+		return true
+	}
+
+	private fun append(writer: (DataOutputStream) -> Unit) {
+		if (records >= COMPACT_THRESHOLD) {
+			compact() // already contains the new state
+			return
+		}
+		val o = out ?: try {
+			DataOutputStream(FileOutputStream(atomicFile.baseFile, true).buffered()).also { out = it }
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to open journal", e)
+			return
+		}
+		try {
+			writer(o)
+			o.flush() // process death is what we care about, no need to sync
+			records++
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to append to journal", e)
+		}
+	}
+
+	private fun compact() {
+		try {
+			out?.close()
+		} catch (ignored: IOException) {}
+		out = null
+		val o = try {
+			atomicFile.startWrite()
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to write journal snapshot", e)
+			return
+		}
+		try {
+			val d = DataOutputStream(o.buffered())
+			d.writeInt(MAGIC)
+			d.writeInt(VERSION)
+			d.writeByte(OP_GLOBAL.toInt())
+			d.writeInt(globalState)
+			appStates.forEach { (packageName, value) ->
+				d.writeByte(OP_APP.toInt())
+				d.writeUTF(packageName)
+				d.writeInt(value)
+			}
+			d.flush()
+			atomicFile.finishWrite(o)
+			records = 0
+		} catch (e: IOException) {
+			Log.e(TAG, "Failed to write journal snapshot", e)
+			atomicFile.failWrite(o)
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.content.ComponentName
+import android.content.Context
+import android.os.Handler
+import android.service.quicksettings.TileService
+
+/*
+ * Asks the system to rebind quick settings tiles when the state they show changed. Every tile
+ * registers the State flags it displays. Requests from one burst of state changes (enabling
+ * focus mode suspends apps one by one) are coalesced into one request per tile per frame.
+ */
+class TileRefresher(private val context: Context, private val handler: Handler, events: StateEventBus) {
+	companion object {
+		private const val FRAME_MS = 16L
+	}
+
+	private val tiles = LinkedHashMap<Class<out TileService>, Int>()
+	private val pending = LinkedHashSet<Class<out TileService>>()
+	private val flush = Runnable {
+		val p = synchronized(this) { pending.toTypedArray().also { pending.clear() } }
+		p.forEach { TileService.requestListeningState(context, ComponentName(context, it)) }
+	}
+
+	init {
+		events.subscribe(StateEventBus.ALL) { event ->
+			synchronized(this) {
+				tiles.forEach { (tile, mask) -> if (event.hasChanged(mask)) request(tile) }
+			}
+		}
+	}
+
+	@Synchronized
+	fun register(tile: Class<out TileService>, mask: Int) {
+		tiles[tile] = mask
+	}
+
+	@Synchronized
+	fun refreshAll() {
+		tiles.keys.forEach { request(it) }
+	}
+
+	private fun request(tile: Class<out TileService>) {
+		if (pending.isEmpty()) handler.postDelayed(flush, FRAME_MS)
+		pending.add(tile)
+	}
+}
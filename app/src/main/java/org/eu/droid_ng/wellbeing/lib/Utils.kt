@@ -7,7 +7,6 @@ import android.content.ComponentName
 import android.content.Intent
 import android.content.pm.PackageManager
 import android.content.res.Resources
-import android.util.Log
 import java.time.*
 import java.util.*
 
@@ -17,40 +16,40 @@ object Utils {
     private var calculatedUsageStats: HashMap<String, Duration>? = null
     private var calculatedScreenTime: Duration? = null
     private var mostUsedPackages: Array<String>? = null
+    private var usageDay: LocalDate? = null
+    private var usageQueriedUntil: Long = 0
+    private val usageOpenSince = HashMap<String, Long>() // resumed, not paused yet
+    private var usagePushLive = false // the framework pushes events, don't query them
+    private var usagePushChanged = false
     const val PACKAGE_MANAGER_MATCH_INSTANT = 0x00800000
-    @JvmField
-    val blackListedPackages: HashSet<String> = HashSet()
-    @JvmField
-    val restrictedPackages: HashSet<String> = HashSet()
-
-    private fun eventsStr(events: Iterable<UsageEvents.Event>): String {
-        val b = StringBuilder()
-        b.append("[")
-        for (element in events) {
-            b.append("el(t=").append(element.eventType).append("), ")
-        }
-        b.replace(b.length - 2, b.length - 1, "]")
-        return b.toString()
-    }
+    // Immutable snapshots, replaced as a whole by updateApplicationBlackLists so any thread can read them
+    @JvmField @Volatile
+    var blackListedPackages: Set<String> = emptySet()
+    @JvmField @Volatile
+    var restrictedPackages: Set<String> = emptySet()
+    private val clock: Clock = WallClock
 
     @JvmStatic
+    @Synchronized
     fun clearUsageStatsCache(usm: UsageStatsManager?, pm: PackageManager?, recalculate: Boolean) {
         calculatedUsageStats = null
         calculatedScreenTime = null
         mostUsedPackages = null
         if (recalculate) {
-            updateApplicationBlackLists(pm!!)
+            pm?.let { updateApplicationBlackLists(it) }
             checkInitializeCache(usm!!)
         }
     }
 
     @JvmStatic
+    @Synchronized
     fun getTimeUsed(usm: UsageStatsManager, packageName: String?): Duration {
         checkInitializeCache(usm)
         return calculatedUsageStats!!.getOrDefault(packageName, Duration.ZERO)
     }
 
     @JvmStatic
+    @Synchronized
     fun getTimeUsed(usm: UsageStatsManager, packageNames: Array<String?>): Duration {
         checkInitializeCache(usm)
         var d = Duration.ZERO
@@ -61,12 +60,14 @@ object Utils {
     }
 
     @JvmStatic
+    @Synchronized
     fun getScreenTime(usm: UsageStatsManager): Duration {
         checkInitializeCache(usm)
         return calculatedScreenTime!!
     }
 
     @JvmStatic
+    @Synchronized
     fun getMostUsedPackages(usm: UsageStatsManager): Array<String> {
         checkInitializeCache(usm)
         return mostUsedPackages!!
@@ -76,71 +77,116 @@ object Utils {
      * When writing this code, I learnt a lesson. UsageStats and UsageEvents APIs are fucking dumb.
      * I had cases of user opening the app 3 times and closing it 2 times, cases of user opening the app 2 times without closing it at all...
      * But in the very end this works. And it's about 3 trillion times faster than UsageStatsManager queries.
+     *
+     * The cache is built once per day and then only the events since the last query are folded in
+     * (see refreshUsageStats), a session is counted from its first resume to the next pause.
      */
     private fun checkInitializeCache(usm: UsageStatsManager) {
         if (calculatedUsageStats != null) return
         // Cache not available. Calculate it once and keep it.
-        val z = ZoneId.systemDefault()
-        val startTime = LocalDateTime.of(LocalDate.now(z), LocalTime.MIDNIGHT).atZone(z)
+        val z = clock.zone
+        usageDay = LocalDate.now(clock)
+        usageQueriedUntil = LocalDateTime.of(usageDay, LocalTime.MIDNIGHT).atZone(z)
                 .toEpochSecond() * 1000
-        val usageEvents: UsageEvents = usm.queryEvents(startTime, System.currentTimeMillis())
-        var currentEvent: UsageEvents.Event
-        val e = HashMap<String, ArrayList<UsageEvents.Event>>()
+        usageOpenSince.clear()
+        calculatedUsageStats = HashMap<String, Duration>()
+        foldUsageEvents(usm)
+        summarizeUsageStats()
+    }
+
+    /*
+     * Bring the cache up to date without starting over: query only the events after the last
+     * query and fold them in. Starts over at midnight. Returns true if any usage was added.
+     */
+    @JvmStatic
+    @Synchronized
+    fun refreshUsageStats(usm: UsageStatsManager): Boolean {
+        if (calculatedUsageStats == null || usageDay != LocalDate.now(clock)) {
+            clearUsageStatsCache(null, null, false)
+            checkInitializeCache(usm)
+            return true
+        }
+        if (usagePushLive) {
+            // everything already came in through applyPushedUsageEvents
+            val changed = usagePushChanged
+            usagePushChanged = false
+            return changed
+        }
+        if (!foldUsageEvents(usm)) return false
+        summarizeUsageStats()
+        return true
+    }
+
+    /*
+     * Events pushed by the framework (see IWellbeingEventListener), oldest first. Anything up
+     * to usageQueriedUntil was already queried and is skipped. resync means the framework
+     * dropped events before these, so query the gap first. While pushes arrive, refreshes
+     * don't query anymore, until setUsagePushLive(false).
+     */
+    @JvmStatic
+    @Synchronized
+    fun applyPushedUsageEvents(usm: UsageStatsManager, packageNames: Array<String>, resumed: BooleanArray,
+                               timestamps: LongArray, resync: Boolean) {
+        if (calculatedUsageStats == null || usageDay != LocalDate.now(clock)) {
+            clearUsageStatsCache(null, null, false)
+            checkInitializeCache(usm) // queries up to now, covers these events
+        } else if (resync || !usagePushLive) {
+            foldUsageEvents(usm, timestamps.firstOrNull() ?: clock.millis())
+        }
+        usagePushLive = true
+        // events of one batch can share a timestamp, only skip what a query already covered
+        val queriedUntil = usageQueriedUntil
+        var changed = false
+        for (i in packageNames.indices) {
+            if (timestamps[i] <= queriedUntil) continue
+            changed = foldUsageEvent(packageNames[i], resumed[i], timestamps[i]) || changed
+        }
+        timestamps.lastOrNull()?.let { if (it > usageQueriedUntil) usageQueriedUntil = it }
+        if (changed) {
+            summarizeUsageStats()
+            usagePushChanged = true
+        }
+    }
+
+    // The push stream is gone, go back to querying from where it stopped.
+    @JvmStatic
+    @Synchronized
+    fun setUsagePushLive(live: Boolean) {
+        usagePushLive = live
+    }
+
+    private fun foldUsageEvent(pkgName: String, resumed: Boolean, timeStamp: Long): Boolean {
+        if (resumed) {
+            // More resumes without a pause in between belong to the same session
+            usageOpenSince.putIfAbsent(pkgName, timeStamp)
+            return false
+        }
+        // Pause without a resume, for example the app was opened before midnight. Skip it.
+        val start = usageOpenSince.remove(pkgName) ?: return false
+        calculatedUsageStats!![pkgName] = calculatedUsageStats!!.getOrDefault(pkgName, Duration.ZERO)
+                .plus(Duration.ofMillis(timeStamp - start))
+        return true
+    }
+
+    private fun foldUsageEvents(usm: UsageStatsManager, until: Long = clock.millis()): Boolean {
+        val now = until
+        if (now <= usageQueriedUntil) return false
+        val usageEvents: UsageEvents = usm.queryEvents(usageQueriedUntil, now)
+        usageQueriedUntil = now
+        val currentEvent = UsageEvents.Event()
+        var changed = false
         while (usageEvents.hasNextEvent()) {
-            currentEvent = UsageEvents.Event()
             usageEvents.getNextEvent(currentEvent)
-            if (currentEvent.eventType == UsageEvents.Event.ACTIVITY_PAUSED ||
-                    currentEvent.eventType == UsageEvents.Event.ACTIVITY_RESUMED
-            ) {
-                e.computeIfAbsent(
-                        currentEvent.packageName
-                ) { ArrayList() }
-                        .add(currentEvent)
-            }
-        }
-        // Calculate usageStats
-        calculatedUsageStats = HashMap<String, Duration>()
-        e.forEach { (pkgName: String, events: ArrayList<UsageEvents.Event>) ->
-            var i = 0
-            while (i < events.size) {
-                var j = 1
-                if (i + j >= events.size) {
-                    i += 2
-                    continue
-                }
-                val eventOne = events[i]
-                var eventTwo = events[i + j]
-                if (eventOne.eventType == UsageEvents.Event.ACTIVITY_PAUSED) {
-                    Log.e("AppTimersInternal", "usm soft assert1 fail!! eventOneType=" + eventOne.eventType + " eventTwoType=" + eventTwo.eventType)
-                    i += 1
-                    continue
-                    // Unlucky case. Skip one. Should never happen, but safe is safe. edit: happens. help me
-                }
-                if (eventOne.eventType != UsageEvents.Event.ACTIVITY_RESUMED) {
-                    Log.e("AppTimersInternal", "usm soft assert2 fail!! pkgName=$pkgName i=$i j=$j events=${eventsStr(events)}")
-                    i += 2
-                    continue
-                    // did not find start
-                }
-                while (events[i + j].also { eventTwo = it }.eventType == UsageEvents.Event.ACTIVITY_RESUMED) {
-                    j++
-                    if (i + j == events.size) {
-                        Log.e("AppTimersInternal", "usm soft assert3 fail!! pkgName=$pkgName i=$i j=$j events=${eventsStr(events)}")
-                        break
-                        // did not find ending
-                    }
-                }
-                if (eventTwo.eventType != UsageEvents.Event.ACTIVITY_PAUSED) {
-                    Log.e("AppTimersInternal", "usm soft assert4 fail!! pkgName=$pkgName i=$i j=$j events=${eventsStr(events)}")
-                    i += 2
-                    continue
-                    // did not find ending
-                }
-                calculatedUsageStats!![pkgName] = calculatedUsageStats!!.getOrDefault(pkgName, Duration.ZERO)
-                        .plus(Duration.ofMillis(eventTwo.timeStamp - eventOne.timeStamp))
-                i += 2
+            val type = currentEvent.eventType
+            if (type == UsageEvents.Event.ACTIVITY_RESUMED || type == UsageEvents.Event.ACTIVITY_PAUSED) {
+                changed = foldUsageEvent(currentEvent.packageName, type == UsageEvents.Event.ACTIVITY_RESUMED,
+                        currentEvent.timeStamp) || changed
             }
         }
+        return changed
+    }
+
+    private fun summarizeUsageStats() {
         // Calculate screenTime + mostUsedPackages
         var screenTimeTmp: Duration = Duration.ZERO
         val mostUsedPackagesTmp = arrayOfNulls<String>(mostUsedPackagesCacheSize)
@@ -186,11 +232,12 @@ object Utils {
     }
 
     @SuppressLint("DiscouragedApi")
-    private fun updateApplicationBlackLists(pm: PackageManager) {
-        blackListedPackages.clear()
-        restrictedPackages.clear()
+    @JvmStatic
+    fun updateApplicationBlackLists(pm: PackageManager) {
+        val blackListed = HashSet<String>()
+        val restricted = HashSet<String>()
 
-        blackListedPackages.add("com.android.systemui")
+        blackListed.add("com.android.systemui")
 
         val resId = Resources.getSystem().getIdentifier(
                 "config_recentsComponentName", "string", "android")
@@ -198,20 +245,22 @@ object Utils {
             val recentsComponent = ComponentName.unflattenFromString(
                     Resources.getSystem().getString(resId))
             if (recentsComponent != null)
-                restrictedPackages.add(recentsComponent.packageName)
+                restricted.add(recentsComponent.packageName)
         }
         var intent = Intent(Intent.ACTION_MAIN)
         intent.addCategory(Intent.CATEGORY_HOME)
-        addDefaultHandlersToBlacklist(pm, intent, restrictedPackages)
-        restrictedPackages.addAll(blackListedPackages)
-        restrictedPackages.add("com.android.settings")
+        addDefaultHandlersToBlacklist(pm, intent, restricted)
+        restricted.addAll(blackListed)
+        restricted.add("com.android.settings")
         // Add every system dialer to the blacklist
         intent = Intent(Intent.ACTION_DIAL)
         intent.addCategory(Intent.CATEGORY_DEFAULT)
-        addDefaultHandlersToBlacklist(pm, intent, restrictedPackages)
-        restrictedPackages.add("org.eu.droid_ng.wellbeing")
-        //Log.d("Utils", "Hard Blacklisted packages: $blackListedPackages")
-        //Log.d("Utils", "Soft Blacklisted packages: $restrictedPackages")
+        addDefaultHandlersToBlacklist(pm, intent, restricted)
+        restricted.add("org.eu.droid_ng.wellbeing")
+        //Log.d("Utils", "Hard Blacklisted packages: $blackListed")
+        //Log.d("Utils", "Soft Blacklisted packages: $restricted")
+        blackListedPackages = Collections.unmodifiableSet(blackListed)
+        restrictedPackages = Collections.unmodifiableSet(restricted)
     }
 
     private fun addDefaultHandlersToBlacklist(pm: PackageManager, intent: Intent, blacklist: HashSet<String>) {
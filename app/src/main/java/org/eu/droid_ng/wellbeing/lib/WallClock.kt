@@ -0,0 +1,28 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+
+/*
+ * The real time in whatever the default time zone is right now. Clock.systemDefaultZone()
+ * would keep the zone from when it was created, which breaks schedules after a time zone
+ * change. Schedule code takes a Clock so tests can drive it with a fake one instead.
+ */
+object WallClock : Clock() {
+	override fun getZone(): ZoneId {
+		return ZoneId.systemDefault()
+	}
+
+	override fun withZone(zone: ZoneId): Clock {
+		return system(zone)
+	}
+
+	override fun instant(): Instant {
+		return Instant.now()
+	}
+
+	override fun millis(): Long {
+		return System.currentTimeMillis()
+	}
+}
@@ -0,0 +1,159 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import java.time.LocalDateTime
+import java.time.ZonedDateTime
+import java.time.temporal.ChronoUnit
+
+/*
+ * A daily time window repeated on some weekdays (or a union of several), compiled into a
+ * bitmap with one bit per minute of the week plus a sorted table of the minutes where the
+ * bitmap flips. Is-active and next-transition lookups are a bit test and an array lookup, no
+ * matter how many days are set.
+ *
+ * Rules:
+ *  - A window belongs to the day it starts on. If end <= start it is an overnight window that
+ *    ends on the next day (sunday nights wrap into monday).
+ *  - start == end is an empty window, the schedule never becomes active.
+ *  - Everything is evaluated in local wall-clock time. When a transition falls into a DST gap
+ *    it happens at the first valid instant after the gap (what ZonedDateTime.of does); when it
+ *    falls into an overlap it happens at the first occurrence, or the second one if the first
+ *    already passed.
+ *
+ * This class only depends on java.time.
+ */
+class WeeklySchedule private constructor(private val bits: LongArray) {
+	class Transition(val time: ZonedDateTime, val isStart: Boolean)
+
+	companion object {
+		const val MINUTES_PER_DAY = 24 * 60
+		const val MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY
+		private const val WORDS = (MINUTES_PER_WEEK + 63) / 64
+
+		@JvmStatic
+		fun minuteOfWeek(time: LocalDateTime): Int {
+			return time.dayOfWeek.ordinal * MINUTES_PER_DAY + time.hour * 60 + time.minute
+		}
+
+		// Active whenever at least one of the schedules is. Windows that overlap or touch merge
+		// into one, so the result only has the edges where the union really flips.
+		@JvmStatic
+		fun union(schedules: Iterable<WeeklySchedule>): WeeklySchedule {
+			val bits = LongArray(WORDS)
+			for (s in schedules) {
+				for (i in bits.indices) bits[i] = bits[i] or s.bits[i]
+			}
+			return WeeklySchedule(bits)
+		}
+
+		private fun compile(startMinuteOfDay: Int, endMinuteOfDay: Int, weekdays: BooleanArray): LongArray {
+			if (weekdays.size != 7)
+				throw IllegalArgumentException("weekdays.size = ${weekdays.size}")
+			if (startMinuteOfDay !in 0 until MINUTES_PER_DAY || endMinuteOfDay !in 0 until MINUTES_PER_DAY)
+				throw IllegalArgumentException("invalid window $startMinuteOfDay-$endMinuteOfDay")
+			val bits = LongArray(WORDS)
+			val duration = Math.floorMod(endMinuteOfDay - startMinuteOfDay, MINUTES_PER_DAY)
+			for (d in 0..6) {
+				if (!weekdays[d]) continue
+				val base = d * MINUTES_PER_DAY + startMinuteOfDay
+				for (i in 0 until duration) {
+					val m = (base + i) % MINUTES_PER_WEEK
+					bits[m ushr 6] = bits[m ushr 6] or (1L shl (m and 63))
+				}
+			}
+			return bits
+		}
+	}
+
+	private val edges: IntArray // minute of week of every flip, ascending
+	private val nextEdge: ShortArray // minute of week -> index of the first edge strictly after it
+
+	constructor(startMinuteOfDay: Int, endMinuteOfDay: Int, weekdays: BooleanArray) :
+			this(compile(startMinuteOfDay, endMinuteOfDay, weekdays))
+
+	init {
+		val e = ArrayList<Int>()
+		for (m in 0 until MINUTES_PER_WEEK) {
+			if (isActiveAt(m) != isActiveAt((m + MINUTES_PER_WEEK - 1) % MINUTES_PER_WEEK)) e.add(m)
+		}
+		edges = e.toIntArray()
+		nextEdge = ShortArray(MINUTES_PER_WEEK)
+		if (edges.isNotEmpty()) {
+			var j = edges.size
+			for (m in MINUTES_PER_WEEK - 1 downTo 0) {
+				while (j > 0 && edges[j - 1] > m) j--
+				nextEdge[m] = (if (j == edges.size) 0 else j).toShort()
+			}
+		}
+	}
+
+	// true if the schedule never changes state (nothing enabled, an empty window or always on)
+	fun isEmpty(): Boolean {
+		return edges.isEmpty()
+	}
+
+	fun isActiveAt(minuteOfWeek: Int): Boolean {
+		return bits[minuteOfWeek ushr 6] and (1L shl (minuteOfWeek and 63)) != 0L
+	}
+
+	fun isActive(time: LocalDateTime): Boolean {
+		return isActiveAt(minuteOfWeek(time))
+	}
+
+	fun isActive(time: ZonedDateTime): Boolean {
+		return isActive(time.toLocalDateTime())
+	}
+
+	// Index of the n-th (0-based) edge after minuteOfWeek, counting on into the following
+	// weeks: edge k is edges[k % edges.size] in week k / edges.size.
+	private fun edgeIndex(minuteOfWeek: Int, n: Int): Int {
+		val i = nextEdge[minuteOfWeek].toInt()
+		return (if (edges[i] <= minuteOfWeek) i + edges.size else i) + n
+	}
+
+	// Minutes from minuteOfWeek to the n-th (0-based) edge after it, or -1 if there is none.
+	fun minutesUntilEdge(minuteOfWeek: Int, n: Int = 0): Int {
+		if (edges.isEmpty()) return -1
+		val k = edgeIndex(minuteOfWeek, n)
+		return edges[k % edges.size] + (k / edges.size) * MINUTES_PER_WEEK - minuteOfWeek
+	}
+
+	// Whether the n-th edge after minuteOfWeek starts a window.
+	fun isStartEdge(minuteOfWeek: Int, n: Int = 0): Boolean {
+		return isActiveAt(edges[edgeIndex(minuteOfWeek, n) % edges.size])
+	}
+
+	fun nextTransition(now: ZonedDateTime): Transition? {
+		if (edges.isEmpty()) return null
+		val m = minuteOfWeek(now.toLocalDateTime())
+		return Transition(resolveEdge(now, 0), isStartEdge(m))
+	}
+
+	fun nextStart(now: ZonedDateTime): ZonedDateTime? {
+		return nextEdgeOfKind(now, true)
+	}
+
+	fun nextEnd(now: ZonedDateTime): ZonedDateTime? {
+		return nextEdgeOfKind(now, false)
+	}
+
+	private fun nextEdgeOfKind(now: ZonedDateTime, start: Boolean): ZonedDateTime? {
+		if (edges.isEmpty()) return null
+		// edges alternate between starts and ends, so it's one of the next two
+		val m = minuteOfWeek(now.toLocalDateTime())
+		return resolveEdge(now, if (isStartEdge(m) == start) 0 else 1)
+	}
+
+	private fun resolveEdge(now: ZonedDateTime, n: Int): ZonedDateTime {
+		val local = now.toLocalDateTime().truncatedTo(ChronoUnit.MINUTES)
+		val m = minuteOfWeek(local)
+		var r = ZonedDateTime.of(local.plusMinutes(minutesUntilEdge(m, n).toLong()), now.zone)
+		if (!r.isAfter(now)) {
+			// we are in the second pass of a DST overlap and the first occurrence is gone
+			r = r.withLaterOffsetAtOverlap()
+			if (!r.isAfter(now)) {
+				r = ZonedDateTime.of(local.plusMinutes(minutesUntilEdge(m, n + 2).toLong()), now.zone)
+			}
+		}
+		return r
+	}
+}
@@ -4,54 +4,95 @@ import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.content.ServiceConnection
+import android.os.Bundle
 import android.os.Handler
 import android.os.IBinder
 import android.os.Looper
 import android.os.RemoteException
 import android.util.Log
+import org.eu.droid_ng.wellbeing.framework.FrameworkBatch
+import org.eu.droid_ng.wellbeing.framework.FrameworkCapabilities
+import org.eu.droid_ng.wellbeing.framework.IWellbeingBatchCallback
+import org.eu.droid_ng.wellbeing.framework.IWellbeingEventListener
 import org.eu.droid_ng.wellbeing.framework.IWellbeingFrameworkService
 
+/*
+ * Connection to the privileged framework service. Liveness comes from a DeathRecipient, the
+ * feature set is asked once per connection (see FrameworkCapabilities) and kept, so callers
+ * check hasCapability() without any IPC.
+ *
+ * The capabilities survive a reconnect: commands sent while the framework restarts are queued
+ * (up to MAX_QUEUED, oldest dropped first) and go out once it is back. They are only dropped
+ * when the framework turns out to be gone or too old for them.
+ *
+ * Only used from the main thread.
+ */
 class WellbeingFrameworkService internal constructor(
 	private val context: Context,
 	private val wellbeingService: WellbeingService
 ) : IWellbeingFrameworkService {
+	// onDropped tells whoever waits for a result that the command will never run.
+	private class Command(val capability: Long, val run: (IWellbeingFrameworkService) -> Unit, val onDropped: (() -> Unit)?)
+
 	private val serviceConnection: ServiceConnection
 	private var wellbeingFrameworkService: IWellbeingFrameworkService? = null
 	private var binder: IBinder? = null
 	private var versionCode = 0
+	private var capabilities = 0L
+	private var connecting = false
 	private var initial = true
+	private val queue = ArrayDeque<Command>()
+	private val eventListener = object : IWellbeingEventListener.Stub() {
+		override fun onUsageEvents(packageNames: Array<String>, resumed: BooleanArray, timestamps: LongArray, resync: Boolean) {
+			Utils.applyPushedUsageEvents(wellbeingService.usm, packageNames, resumed, timestamps, resync)
+		}
+	}
+	private val deathRecipient = IBinder.DeathRecipient {
+		HANDLER.post {
+			Log.w(TAG, "Framework service died, reconnecting")
+			onDisconnected()
+			tryConnect()
+		}
+	}
 
 	init {
 		serviceConnection = object : ServiceConnection {
 			override fun onServiceConnected(name: ComponentName, service: IBinder) {
-				wellbeingFrameworkService = IWellbeingFrameworkService.Stub.asInterface(
-					service.also {
-						binder = it
-					})
+				val s = IWellbeingFrameworkService.Stub.asInterface(service)
 				try {
-					versionCode = wellbeingFrameworkService!!.versionCode()
+					service.linkToDeath(deathRecipient, 0)
+					val v = s.versionCode()
+					capabilities = if (v >= 5) s.capabilities() else FrameworkCapabilities.fromVersion(v)
+					versionCode = v
+					binder = service
+					wellbeingFrameworkService = s
+					connecting = false
+					if (hasCapability(FrameworkCapabilities.USAGE_EVENTS)) {
+						// a new framework process doesn't know us, so this runs on every connect
+						s.registerEventListener(eventListener)
+					}
 				} catch (e: Exception) {
-					Log.e("WellbeingFrameworkService", "Failed to get framework version", e)
-					invalidateConnection()
+					Log.e(TAG, "Failed to get framework version", e)
+					onGone()
 					context.unbindService(this)
+					return
 				}
-				if (binder != null || initial) {
-					notifyWellbeingService()
-				}
+				drainQueue()
+				notifyWellbeingService()
 			}
 
 			override fun onServiceDisconnected(name: ComponentName) {
-				invalidateConnection()
+				onDisconnected()
 				HANDLER.post { tryConnect() }
 			}
 
 			override fun onBindingDied(name: ComponentName) {
-				invalidateConnection()
+				onGone()
 				context.unbindService(this)
 			}
 
 			override fun onNullBinding(name: ComponentName) {
-				invalidateConnection()
+				onGone()
 				context.unbindService(this)
 				if (initial) {
 					notifyWellbeingService()
@@ -60,10 +101,24 @@ class WellbeingFrameworkService internal constructor(
 		}
 	}
 
-	private fun invalidateConnection() {
-		wellbeingFrameworkService = DEFAULT
-		versionCode = 0
+	// Lost the connection, but expect it back: keep capabilities and queued commands.
+	private fun onDisconnected() {
+		Utils.setUsagePushLive(false)
+		binder?.unlinkToDeath(deathRecipient, 0)
+		wellbeingFrameworkService = null
 		binder = null
+		connecting = false
+	}
+
+	// There is no (usable) framework.
+	private fun onGone() {
+		onDisconnected()
+		versionCode = 0
+		capabilities = 0
+		if (queue.isNotEmpty()) Log.w(TAG, "Dropping ${queue.size} framework commands")
+		val dropped = ArrayList(queue)
+		queue.clear()
+		dropped.forEach { it.onDropped?.invoke() }
 	}
 
 	private fun notifyWellbeingService() {
@@ -74,37 +129,150 @@ class WellbeingFrameworkService internal constructor(
 	}
 
 	fun tryConnect() {
-		if (versionCode == -1) return
-		if (binder == null || !(binder!!.isBinderAlive && binder!!.pingBinder())) {
-			versionCode = -1
-			try {
-				context.bindService(
+		if (binder != null || connecting) return
+		connecting = true
+		try {
+			if (!context.bindService(
 					FRAMEWORK_SERVICE_INTENT, serviceConnection,
 					Context.BIND_AUTO_CREATE or Context.BIND_INCLUDE_CAPABILITIES
-				)
-			} catch (e: Exception) {
-				Log.e("WellbeingFrameworkService", "Failed to bind framework service", e)
-				if (versionCode == -1) {
-					versionCode = 0
-					if (initial) {
-						notifyWellbeingService()
-					}
+				)) {
+				onGone()
+				context.unbindService(serviceConnection)
+				if (initial) {
+					notifyWellbeingService()
 				}
 			}
+		} catch (e: Exception) {
+			Log.e(TAG, "Failed to bind framework service", e)
+			onGone()
+			if (initial) {
+				notifyWellbeingService()
+			}
 		}
 	}
 
-	override fun versionCode(): Int {
-		if (binder != null && !binder!!.isBinderAlive) {
-			invalidateConnection()
+	fun isConnected(): Boolean {
+		return wellbeingFrameworkService != null
+	}
+
+	fun hasCapability(capability: Long): Boolean {
+		return (capabilities and capability) == capability
+	}
+
+	// Runs command now, or once the framework is back. Returns false if it never will, in which
+	// case onDropped is not called.
+	private fun send(capability: Long, onDropped: (() -> Unit)? = null, command: (IWellbeingFrameworkService) -> Unit): Boolean {
+		if (!hasCapability(capability)) return false
+		val s = wellbeingFrameworkService
+		if (s != null) {
+			try {
+				command(s)
+				return true
+			} catch (e: RemoteException) {
+				Log.e(TAG, "Framework call failed, queueing it", e) // death recipient is on its way
+			}
 		}
+		if (queue.size >= MAX_QUEUED) {
+			Log.w(TAG, "Framework command queue full, dropping the oldest")
+			queue.removeFirst().onDropped?.invoke()
+		}
+		queue.addLast(Command(capability, command, onDropped))
+		tryConnect()
+		return true
+	}
+
+	private fun drainQueue() {
+		while (queue.isNotEmpty()) {
+			val s = wellbeingFrameworkService ?: return
+			val c = queue.removeFirst()
+			if (!hasCapability(c.capability)) {
+				c.onDropped?.invoke()
+				continue
+			}
+			try {
+				c.run(s)
+			} catch (e: RemoteException) {
+				Log.e(TAG, "Queued framework call failed", e)
+				queue.addFirst(c)
+				return
+			}
+		}
+	}
+
+	override fun versionCode(): Int {
 		return versionCode
 	}
 
-	@Throws(RemoteException::class)
+	override fun capabilities(): Long {
+		return capabilities
+	}
+
 	override fun setAirplaneMode(value: Boolean) {
-		if (versionCode < 1) return
-		wellbeingFrameworkService!!.setAirplaneMode(value)
+		send(FrameworkCapabilities.AIRPLANE_MODE) { it.setAirplaneMode(value) }
+	}
+
+	override fun executeBatch(version: Int, ops: Array<Bundle?>?, callback: IWellbeingBatchCallback?) {
+		val unsupported = { callback?.onBatchResult(IntArray(ops?.size ?: 0) { FrameworkBatch.RESULT_UNSUPPORTED }) }
+		if (!send(FrameworkCapabilities.BATCH, { unsupported() }) { it.executeBatch(version, ops, callback) }) {
+			unsupported()
+		}
+	}
+
+	// Synchronous, so not queued. Returns the packages that failed, all of them if not connected.
+	override fun suspendPackages(specs: Array<Bundle?>): Array<String> {
+		val s = wellbeingFrameworkService
+		if (s != null && hasCapability(FrameworkCapabilities.SUSPEND)) {
+			try {
+				return s.suspendPackages(specs)
+			} catch (e: RemoteException) {
+				Log.e(TAG, "Failed to suspend packages", e)
+			}
+		}
+		return specs.flatMap { it?.getStringArray(FrameworkBatch.KEY_PACKAGES)?.filterNotNull() ?: emptyList() }.toTypedArray()
+	}
+
+	override fun registerEventListener(listener: IWellbeingEventListener?) {
+		send(FrameworkCapabilities.USAGE_EVENTS) { it.registerEventListener(listener) }
+	}
+
+	override fun unregisterEventListener(listener: IWellbeingEventListener?) {
+		send(FrameworkCapabilities.USAGE_EVENTS) { it.unregisterEventListener(listener) }
+	}
+
+	// Synchronous, so not queued. False if not connected, the caller falls back to its own ColorDisplayManager.
+	override fun setSaturationLevel(level: Int): Boolean {
+		val s = wellbeingFrameworkService
+		if (s != null && hasCapability(FrameworkCapabilities.DISPLAY_COLOR)) {
+			try {
+				return s.setSaturationLevel(level)
+			} catch (e: RemoteException) {
+				Log.e(TAG, "Failed to set saturation", e)
+			}
+		}
+		return false
+	}
+
+	// Returns the packages that failed, all of them if not connected.
+	override fun setAppSaturationLevel(packageNames: Array<String>, level: Int): Array<String> {
+		val s = wellbeingFrameworkService
+		if (s != null && hasCapability(FrameworkCapabilities.DISPLAY_COLOR)) {
+			try {
+				return s.setAppSaturationLevel(packageNames, level)
+			} catch (e: RemoteException) {
+				Log.e(TAG, "Failed to set app saturation", e)
+			}
+		}
+		return packageNames
+	}
+
+	// One transaction for all ops, onResult gets one FrameworkBatch.RESULT_* per op on the main thread.
+	fun runBatch(ops: Array<Bundle?>, onResult: (IntArray) -> Unit) {
+		val callback = object : IWellbeingBatchCallback.Stub() {
+			override fun onBatchResult(results: IntArray) {
+				HANDLER.post { onResult(results) }
+			}
+		}
+		executeBatch(FrameworkBatch.VERSION, ops, callback)
 	}
 
 	override fun asBinder(): IBinder {
@@ -112,15 +280,11 @@ class WellbeingFrameworkService internal constructor(
 	}
 
 	companion object {
+		private const val TAG = "WellbeingFrameworkService"
+		private const val MAX_QUEUED = 32
 		private val HANDLER = Handler(Looper.getMainLooper())
 		private val FRAMEWORK_SERVICE_INTENT =
 			Intent("org.eu.droid_ng.wellbeing.framework.FRAMEWORK_SERVICE")
 				.setPackage("org.eu.droid_ng.wellbeing.framework")
-		private var DEFAULT: IWellbeingFrameworkService? = null
-
-		init {
-			IWellbeingFrameworkService.Stub.setDefaultImpl(
-				IWellbeingFrameworkService.Default().also { DEFAULT = it })
-		}
 	}
-}
\ No newline at end of file
+}
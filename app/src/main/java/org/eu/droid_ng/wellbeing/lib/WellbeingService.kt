@@ -6,10 +6,9 @@ import android.appwidget.AppWidgetProvider
 import android.content.*
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageManager
-import android.os.BatteryManager
 import android.os.Build
+import android.os.Bundle
 import android.os.Handler
-import android.service.quicksettings.TileService
 import android.util.Log
 import android.widget.Toast
 import androidx.appcompat.app.AlertDialog
@@ -17,20 +16,21 @@ import org.eu.droid_ng.wellbeing.R
 import org.eu.droid_ng.wellbeing.Wellbeing
 import org.eu.droid_ng.wellbeing.broadcast.AppTimersBroadcastReceiver
 import org.eu.droid_ng.wellbeing.broadcast.NotificationBroadcastReceiver
+import org.eu.droid_ng.wellbeing.framework.FrameworkBatch
+import org.eu.droid_ng.wellbeing.framework.FrameworkCapabilities
 import org.eu.droid_ng.wellbeing.join
 import org.eu.droid_ng.wellbeing.lib.BugUtils.Companion.BUG
 import org.eu.droid_ng.wellbeing.lib.Utils.getTimeUsed
-import org.eu.droid_ng.wellbeing.prefs.MainActivity
 import org.eu.droid_ng.wellbeing.shim.PackageManagerDelegate
 import org.eu.droid_ng.wellbeing.shim.PackageManagerDelegate.SuspendDialogInfo
 import org.eu.droid_ng.wellbeing.ui.TakeBreakDialogActivity
 import org.eu.droid_ng.wellbeing.widget.ScreenTimeAppWidget
+import java.io.File
+import java.time.Clock
 import java.time.Duration
 import java.time.temporal.ChronoUnit
 import java.util.*
 import java.util.concurrent.TimeUnit
-import java.util.function.Consumer
-import java.util.stream.Collectors
 
 
 class WellbeingService(private val context: Context) {
@@ -43,29 +43,33 @@ class WellbeingService(private val context: Context) {
 
 	fun bindToHost(newhost: WellbeingStateHost?) {
 		host = newhost
-		if (host != null) {
-			onServiceStartedCallbacks.toTypedArray().forEach {
-				it.run()
-				onServiceStartedCallbacks.remove(it)
-			}
-		}
-	}
-	private val stateCallbacks: ArrayList<Consumer<WellbeingService>> = ArrayList()
-
-	fun addStateCallback(callback: Consumer<WellbeingService>) {
-		stateCallbacks.add(callback)
-	}
-
-	fun removeStateCallback(callback: Consumer<WellbeingService>) {
-		stateCallbacks.remove(callback)
 	}
+	@JvmField val stateEvents = StateEventBus()
+	// What the last StateEvent reported, to diff against.
+	private var publishedState = 0
+	// Per-app state as last published, only for packages set since then (see setPerAppState).
+	private val unpublishedAppStates = HashMap<String, Int>()
 
 	private fun onStateChanged() {
-		updateServiceStatus()
-		stateCallbacks.forEach { it.accept(this) }
+		publishStateEvent(updateServiceStatus())
 	}
 
-	private val onServiceStartedCallbacks: ArrayList<Runnable> = ArrayList()
+	private fun publishStateEvent(newState: State) {
+		var mask = publishedState xor newState.toInt()
+		val packages = HashSet<String>()
+		for ((pkg, old) in unpublishedAppStates) {
+			val changed = old xor perAppState.getOrDefault(pkg, 0)
+			if (changed != 0) {
+				mask = mask or changed
+				packages.add(pkg)
+			}
+		}
+		unpublishedAppStates.clear()
+		if (mask == 0) return
+		val event = StateEvent(State(publishedState), newState, mask, packages)
+		publishedState = newState.toInt()
+		stateEvents.publish(event)
+	}
 
 	private fun startService(lateNotify: Boolean = false) {
 		if (host != null) {
@@ -80,10 +84,10 @@ class WellbeingService(private val context: Context) {
 			callback?.run()
 			return
 		}
+		startService(lateNotify)
 		if (callback != null) {
-			onServiceStartedCallbacks.add(callback)
+			HostLifecycle.awaitRunning { callback.run() }
 		}
-		startService(lateNotify)
 	}
 
 	private fun stopService() {
@@ -91,20 +95,6 @@ class WellbeingService(private val context: Context) {
 	}
 
 
-	@JvmOverloads
-	fun getInstalledApplications(flags: Int = 0): List<ApplicationInfo> {
-		val newflags = (when(systemApp) {
-			true -> Utils.PACKAGE_MANAGER_MATCH_INSTANT
-			false -> 0
-		} or flags)
-		return if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			pm.getInstalledApplications(PackageManager.ApplicationInfoFlags.of(newflags.toLong()))
-		} else {
-			@Suppress("deprecation")
-			pm.getInstalledApplications(newflags)
-		}
-	}
-
 	@JvmOverloads
 	@Throws(PackageManager.NameNotFoundException::class)
 	fun getApplicationInfo(packageName: String, matchUninstalled: Boolean = true, flags: Int = 0): ApplicationInfo {
@@ -146,11 +136,27 @@ class WellbeingService(private val context: Context) {
 	}
 
 	private val handler = Handler.createAsync(context.mainLooper)
+	private val tiles = TileRefresher(context, handler, stateEvents)
 	private val pm = context.packageManager
 	private val pmd = PackageManagerDelegate(pm)
-	val cdm: PackageManagerDelegate.IColorDisplayManager = PackageManagerDelegate.getColorDisplayManager(context)
+	private val packageIndex = PackageIndex.get(context)
+	// only used without a framework, resolving it is a handful of reflective lookups
+	private val cdm by lazy { PackageManagerDelegate.getColorDisplayManager(context) }
 	@JvmField val usm = context.getSystemService(Context.USAGE_STATS_SERVICE) as UsageStatsManager
-	private val alc = AlarmCoordinator(context)
+	private val clock: Clock = WallClock
+	private val alarms = AlarmMultiplexer(AlarmManagerWakeup(context), clock, this::onAlarmFired)
+	private val alc = AlarmCoordinator(context, alarms)
+	val powerState = PowerStateTracker(context, this::onPowerStateChanged)
+	private val schedules = ModeScheduleResolver(ModeScheduleResolver.PrefsStore(context), alarms, clock,
+		{ powerState.isCharging }, this::onModeScheduleEdge)
+	private val journal = StateJournal(File(context.filesDir, "state.journal"))
+	private val deadlines = DeadlineScheduler(File(context.filesDir, "deadlines"), clock, { time ->
+		if (time == null) {
+			alarms.cancel("deadline")
+		} else {
+			alarms.set("deadline", time)
+		}
+	}, this::onDeadline)
 	private val notificationManager = context.getSystemService(NotificationManager::class.java) as NotificationManager
 
 	private var airplaneState: WellbeingAirplaneState
@@ -159,16 +165,18 @@ class WellbeingService(private val context: Context) {
 
 	private val oidMap = context.getSharedPreferences("AppTimersInternal", 0)
 	private val config = context.getSharedPreferences("appTimers", 0)
-	private val sched = context.getSharedPreferences("sched", 0)
+	private val scheduleStore = ScheduleStore(context)
+	private val focusModeList = AppListSelection(context, "focus_mode", "focus_whitelist")
+	private val manualSuspendList = AppListSelection(context, "manual_suspend", null)
 
 	@JvmField var focusModeAllApps = true
-	private var focusModeInvertSelection = false
 	private var focusModeBreakTimeDialog = -1
 	private var focusModeBreakTimeNotification = -1
 	private var manualSuspendDialog = false
 	private var manualSuspendAllApps = false
 	private var appTimerDialogBreakTime = -1
 	private var bedtimeGreyscale = true
+	private var focusModeGreyscale = false
 	private var bedtimeAirplaneMode = true
 	private var reminderMin = -1
 
@@ -180,7 +188,7 @@ class WellbeingService(private val context: Context) {
 		manualSuspendDialog = prefs.getBoolean("manual_dialog", manualSuspendDialog)
 		manualSuspendAllApps = prefs.getBoolean("manual_all", manualSuspendAllApps)
 		focusModeAllApps = prefs.getBoolean("focus_all", focusModeAllApps)
-		focusModeInvertSelection = prefs.getBoolean("focus_whitelist", focusModeInvertSelection)
+		focusModeGreyscale = prefs.getBoolean("focus_greyscale", focusModeGreyscale)
 		appTimerDialogBreakTime = Integer.parseInt(prefs.getString("app_timer_dialog", appTimerDialogBreakTime.toString()) ?: appTimerDialogBreakTime.toString())
 		reminderMin = Integer.parseInt(prefs.getString("app_timer_reminder", reminderMin.toString()) ?: reminderMin.toString())
 		bedtimeGreyscale = bedmode.getBoolean("greyscale", bedtimeGreyscale)
@@ -190,59 +198,65 @@ class WellbeingService(private val context: Context) {
 	}
 
 	private fun loadSchedcfg() {
-		sched.getStringSet("triggers", HashSet())?.stream()?.map { raw ->
-			val values = raw.split(";;")
-			if (values.size < 2) throw IllegalStateException("invalid value $raw")
-			return@map when (values[0]) {
-				"time" -> {
-					val bools = BooleanArray(7); for (i in bools.indices) if (values[8].toInt() and (1 shl i) != 0) bools[i] = true // bitmask -> boolean[]
-					TimeChargerTriggerCondition(values[1], values[2], values[3].toBooleanStrict(), values[4].toInt(), values[5].toInt(), values[6].toInt(), values[7].toInt(), bools, values[9].toBooleanStrict(), values[10].toBooleanStrict())
-				}
-				else -> {
-					throw IllegalStateException("invalid trigger type ${values[0]}")
-				}
-			}
-		}?.collect(Collectors.toSet())?.let { triggers = it }
-
-		ensureSchedSetup()
+		triggers = scheduleStore.getTriggers()
+		schedules.setTriggers(triggers)
 	}
 
-	private fun writeSchedcfg() {
-		val s = sched.edit().clear()
+	private lateinit var widgetRefresh: WidgetRefreshPolicy
 
-		s.putStringSet("triggers", triggers.stream().map {
-			when (it) {
-				is TimeChargerTriggerCondition -> {
-					var bits = 0; for (i in 0 until it.weekdays.size) if (it.weekdays[i]) bits = bits or (1 shl i) // boolean[] -> bitmask
-					"time;;${it.id};;${it.iid};;${it.enabled};;${it.startHour};;${it.startMinute};;${it.endHour};;${it.endMinute};;${bits};;${it.needCharger};;${it.endOnAlarm}"
-				}
-				else -> throw IllegalStateException("unknown trigger ${it::class.qualifiedName}")
-			}
-		}.collect(Collectors.toSet()))
-
-		s.apply()
+	fun onScreenTimeWidgetsChanged() {
+		mainStage.ensure()
+		widgetRefresh.onWidgetsChanged()
 	}
 
 	fun updateWidget(widget: Class<out AppWidgetProvider>) {
 		val intent = Intent(context, widget)
-		intent.action = "org.eu.droid_ng.wellbeing.APPWIDGET_UPDATE"
+		intent.action = ScreenTimeAppWidget.ACTION_REFRESH
 		context.sendBroadcast(intent)
 	}
 
-	private var bedtimeModeEnabled = false
-	private var isFocusModeEnabled = false
-	private var isFocusModeBreak /* global break */ = false
-	private val perAppState: HashMap<String /* packageName */, Int /* does NOT contain global flags like FOCUS_MODE_ENABLED or FOCUS_MODE_GLOBAL_BREAK, so always use getAppState() when reading */> = HashMap()
-
-	init {
-		Utils.clearUsageStatsCache(usm, pm, true)
-		airplaneState = when(WellbeingAirplaneState.isAirplaneModeOn(context)) {
-			true -> WellbeingAirplaneState.ENABLED_BY_SYSTEM
-			false -> WellbeingAirplaneState.DISABLED_BY_SYSTEM
-		}
-		onStateChanged() // includes loadSettings()
-		ScheduleUtils.ensureWidgetAlarmSet(context, handler, 60, ScreenTimeAppWidget::class.java)
+	// Initial values are restored from the journal, the packages we suspended before the process died are still suspended.
+	private var bedtimeModeEnabled = State(journal.globalState).isBedtimeModeEnabled()
+		set(value) { field = value; journal.setGlobalState(getState(false).toInt()) }
+	private var isFocusModeEnabled = State(journal.globalState).isFocusModeEnabled()
+		set(value) { field = value; journal.setGlobalState(getState(false).toInt()) }
+	private var isFocusModeBreak /* global break */ = State(journal.globalState).isOnFocusModeBreakGlobal()
+		set(value) { field = value; journal.setGlobalState(getState(false).toInt()) }
+	private val perAppState: HashMap<String /* packageName */, Int /* does NOT contain global flags like FOCUS_MODE_ENABLED or FOCUS_MODE_GLOBAL_BREAK, so always use getAppState() when reading */> = HashMap(journal.getAppStates())
+
+	// All writes to perAppState have to go through here, so they end up in the journal.
+	private fun setPerAppState(packageName: String, value: Int) {
+		unpublishedAppStates.putIfAbsent(packageName, perAppState.getOrDefault(packageName, 0))
+		if (value == 0) perAppState.remove(packageName) else perAppState[packageName] = value
+		journal.setAppState(packageName, value)
+	}
 
+	/*
+	 * Startup is staged: the constructor only restores state (journal, deadlines, settings) so
+	 * whatever woke us up can be handled right away. Everything else runs in the stages below,
+	 * either on demand or from startDeferred() once the caller is done.
+	 */
+	private val scheduleStage = StartupStage("schedules") {
+		// schedules are in local time, move the alarms when the clock or time zone changes
+		val timeFilter = IntentFilter()
+		timeFilter.addAction(Intent.ACTION_TIMEZONE_CHANGED)
+		timeFilter.addAction(Intent.ACTION_TIME_CHANGED)
+		context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(p0: Context?, p1: Intent?) {
+				schedules.evaluate()
+			}
+		}, timeFilter)
+		loadSchedcfg()
+		deadlines.fireDue() // catch up on deadlines that passed while we were not running
+	}
+	// Cheap, and focus mode must never see it half done: it keeps systemui, the launcher, the dialer and us from being suspended.
+	private val blacklistStage = StartupStage("blacklists") {
+		Utils.updateApplicationBlackLists(pm)
+	}
+	private val usageStage = StartupStage("usage") {
+		Utils.clearUsageStatsCache(usm, null, true) // the full-day event scan, blacklists are done by then
+	}
+	private val channelStage = StartupStage("channels") {
 		if (notificationManager.getNotificationChannel("reminder") == null) {
 			val name: CharSequence = context.getString(R.string.channel2_name)
 			val description = context.getString(R.string.channel2_description)
@@ -254,12 +268,9 @@ class WellbeingService(private val context: Context) {
 			}
 			notificationManager.createNotificationChannel(channel)
 		}
-
-		context.registerReceiver(object : BroadcastReceiver() {
-			override fun onReceive(p0: Context?, p1: Intent?) {
-				onUpdatePowerConnection()
-			}
-		}, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+	}
+	private val mainStage = StartupStage("main") {
+		channelStage.ensure()
 		context.registerReceiver(object : BroadcastReceiver() {
 			override fun onReceive(p0: Context?, p1: Intent?) {
 				airplaneState = if (WellbeingAirplaneState.isAirplaneModeOn(context)) {
@@ -269,10 +280,45 @@ class WellbeingService(private val context: Context) {
 				}
 			}
 		}, IntentFilter(Intent.ACTION_AIRPLANE_MODE_CHANGED))
+		widgetRefresh = WidgetRefreshPolicy(context, handler, usm, ScreenTimeAppWidget::class.java)
 		frameworkService.tryConnect()
+		onStateChanged()
+	}
+
+	init {
+		// tiles show a single flag each, from getState(false)
+		tiles.register(FocusModeQSTile::class.java, State.STATE_FOCUS_MODE_ENABLED)
+		tiles.register(BedtimeModeQSTile::class.java, State.STATE_BED_MODE)
+		airplaneState = when(WellbeingAirplaneState.isAirplaneModeOn(context)) {
+			true -> WellbeingAirplaneState.ENABLED_BY_SYSTEM
+			false -> WellbeingAirplaneState.DISABLED_BY_SYSTEM
+		}
+		loadSettings()
+	}
+
+	// Called once right after construction.
+	fun startDeferred() {
+		blacklistStage.ensure()
+		handler.post {
+			scheduleStage.ensure()
+			mainStage.ensure()
+		}
+		Thread({ usageStage.ensure() }, "WellbeingUsageScan").start()
+	}
+
+	// For everything that filters apps by Utils.blackListedPackages or restrictedPackages.
+	fun ensureBlacklists() {
+		blacklistStage.ensure()
+	}
+
+	// Stages that already ran, in the order they started. startNanos is System.nanoTime().
+	fun getStartupTimings(): List<StartupStage.Timing> {
+		return listOf(blacklistStage, scheduleStage, usageStage, channelStage, mainStage)
+			.mapNotNull { it.timing }.sortedBy { it.startNanos }
 	}
 
 	fun onWellbeingFrameworkConnected(initial: Boolean) {
+		handOverSuspensions()
 		if (hasWellbeingAirplaneModeCapabilities()) {
 			if (airplaneState.wellbeingAirplaneModeState != airplaneStateLogical) {
 				setWellbeingAirplaneMode(airplaneStateLogical)
@@ -319,7 +365,7 @@ class WellbeingService(private val context: Context) {
 		if ((value and State.STATE_APP_TIMER_SET) > 0 && Duration.ofMinutes(config.getInt(packageName, 0).toLong()).minus(getTimeUsed(usm, packageName)).toMinutes() <= 0) {
 			value = value or State.STATE_APP_TIMER_EXPIRED
 		}
-		if ((value and State.STATE_APP_TIMER_SET) > 0 && oidMap.contains(ParsedUoid("AppBreak", 0, arrayOf(packageName)).toString())) {
+		if ((value and State.STATE_APP_TIMER_SET) > 0 && deadlines.contains(DeadlineScheduler.Kind.APP_TIMER_BREAK, arrayOf(packageName))) {
 			value = value or State.STATE_APP_TIMER_BREAK
 		}
 
@@ -330,29 +376,121 @@ class WellbeingService(private val context: Context) {
 		loadSettings()
 		bedtimeModeEnabled = enable
 
-		if (enable) {
+		val saturation = if (enable) 0 else 100
+		if (hasWellbeingBatchCapabilities()) {
+			// greyscale and airplane mode in one transaction
+			val ops = ArrayList<Bundle?>()
 			if (bedtimeGreyscale) {
-				cdm.setSaturationLevel(0)
+				ops.add(FrameworkBatch.saturation(saturation))
+			}
+			val oldAirplaneState = airplaneState
+			val airplane = transitionWellbeingAirplaneMode(enable && bedtimeAirplaneMode)
+			airplane?.let {
+				ops.add(FrameworkBatch.airplaneMode(it))
+			}
+			if (ops.isNotEmpty()) {
+				frameworkService.runBatch(ops.toTypedArray()) { results ->
+					if (bedtimeGreyscale && results[0] != FrameworkBatch.RESULT_OK) {
+						Log.e("WellbeingService", "framework failed to set saturation: ${results[0]}")
+						cdm.setSaturationLevel(saturation)
+					}
+					if (airplane != null && results[ops.size - 1] != FrameworkBatch.RESULT_OK) {
+						Log.e("WellbeingService", "framework failed to set airplane mode: ${results[ops.size - 1]}")
+						// airplaneState already assumes the new value, make it true or take it back
+						if (hasWellbeingAirplaneModeCapabilities()) {
+							frameworkService.setAirplaneMode(airplane)
+						} else {
+							setAirplaneState(oldAirplaneState)
+						}
+					}
+				}
 			}
 		} else {
 			if (bedtimeGreyscale) {
-				cdm.setSaturationLevel(100)
+				setSaturationLevel(saturation)
 			}
+			setWellbeingAirplaneMode(enable &&
+					bedtimeAirplaneMode)
 		}
 
-		setWellbeingAirplaneMode(enable &&
-				bedtimeAirplaneMode)
-
 		onStateChanged()
-
-		doUpdateTile(BedtimeModeQSTile::class.java)
 	}
 
 	private fun hasWellbeingAirplaneModeCapabilities(): Boolean {
-		return frameworkService.versionCode() >= 1
+		return frameworkService.hasCapability(FrameworkCapabilities.AIRPLANE_MODE)
+	}
+
+	private fun hasWellbeingBatchCapabilities(): Boolean {
+		return frameworkService.hasCapability(FrameworkCapabilities.BATCH)
+	}
+
+	private fun hasDisplayColorCapabilities(): Boolean {
+		return frameworkService.hasCapability(FrameworkCapabilities.DISPLAY_COLOR)
+	}
+
+	fun setSaturationLevel(level: Int) {
+		if (!hasDisplayColorCapabilities() || !frameworkService.setSaturationLevel(level)) {
+			cdm.setSaturationLevel(level)
+		}
+	}
+
+	fun setAppSaturationLevel(packageNames: Array<String>, level: Int) {
+		setAppSaturationLevels(listOf(Pair(packageNames, level)))
+	}
+
+	// One batch op per level when the framework can, our own ColorDisplayManager otherwise.
+	private fun setAppSaturationLevels(levels: List<Pair<Array<String>, Int>>) {
+		val l = levels.filter { it.first.isNotEmpty() }
+		if (l.isEmpty()) return
+		if (!hasWellbeingBatchCapabilities() || !hasDisplayColorCapabilities()) {
+			l.forEach { setAppSaturationLevelLocally(it.first, it.second) }
+			return
+		}
+		frameworkService.runBatch(l.map { FrameworkBatch.appSaturation(it.first, it.second) }.toTypedArray()) { results ->
+			for (i in l.indices) {
+				if (results[i] == FrameworkBatch.RESULT_OK) continue
+				Log.e("WellbeingService", "framework failed to set app saturation: ${results[i]}")
+				setAppSaturationLevelLocally(l[i].first, l[i].second)
+			}
+		}
+	}
+
+	private fun setAppSaturationLevelLocally(packageNames: Array<String>, level: Int) {
+		val failed = packageNames.filter { !cdm.setAppSaturationLevel(it, level) }
+		if (failed.isNotEmpty()) Log.e("WellbeingService", "Failed to set saturation of ${failed.joinToString(",")} to $level")
+	}
+
+	// Focus mode greys out the apps it holds back. Only what changed since last time goes out, in
+	// one batch, and the greyed out set is kept so it can be undone after a restart.
+	private fun setFocusModeDesaturated(packageNames: Set<String>) {
+		val prefs = context.getSharedPreferences("restore_state", 0)
+		val old = prefs.getStringSet("focus_desaturated", null) ?: emptySet()
+		val restore = old.filterNot { packageNames.contains(it) }.toTypedArray()
+		val desaturate = packageNames.filterNot { old.contains(it) }.toTypedArray()
+		if (restore.isEmpty() && desaturate.isEmpty()) return
+		prefs.edit().putStringSet("focus_desaturated", HashSet(packageNames)).apply()
+		setAppSaturationLevels(listOf(Pair(restore, 100), Pair(desaturate, 0)))
 	}
 
 	fun setWellbeingAirplaneMode(enable: Boolean) {
+		transitionWellbeingAirplaneMode(enable)?.let {
+			frameworkService.setAirplaneMode(it)
+		}
+	}
+
+	// Also keeps the restore_airplane_mode pref in sync.
+	private fun setAirplaneState(state: WellbeingAirplaneState) {
+		val oldState = airplaneState
+		airplaneState = state
+		if (state.shouldRestoreAirplaneMode() != oldState.shouldRestoreAirplaneMode()) {
+			val prefs = context.getSharedPreferences("restore_state", 0)
+			prefs.edit().putBoolean("restore_airplane_mode",
+					state.shouldRestoreAirplaneMode()).apply()
+		}
+	}
+
+	// Updates our airplane mode state, returns the value to push to the framework if it changed.
+	private fun transitionWellbeingAirplaneMode(enable: Boolean): Boolean? {
 		airplaneStateLogical = enable
 		val oldState = airplaneState
 		if (!hasWellbeingAirplaneModeCapabilities()) {
@@ -367,23 +505,14 @@ class WellbeingService(private val context: Context) {
 							airplaneState.shouldRestoreAirplaneMode()).apply()
 				}
 			}
-			return
+			return null
 		}
-		airplaneState = when(enable) {
+		setAirplaneState(when(enable) {
 			true -> airplaneState.onEnableAirplaneByWellbeing()
 			false -> airplaneState.onDisableAirplaneByWellbeing()
-		}
-		if (airplaneState.airplaneModeState !=
-				oldState.airplaneModeState) {
-			frameworkService.setAirplaneMode(
-					airplaneState.airplaneModeState)
-		}
-		if (airplaneState.shouldRestoreAirplaneMode()
-				!= oldState.shouldRestoreAirplaneMode()) {
-			val prefs = context.getSharedPreferences("restore_state", 0)
-			prefs.edit().putBoolean("restore_airplane_mode",
-					airplaneState.shouldRestoreAirplaneMode()).apply()
-		}
+		})
+		return if (airplaneState.airplaneModeState !=
+				oldState.airplaneModeState) airplaneState.airplaneModeState else null
 	}
 
 	fun onAppTimerExpired(observerId: Int, uniqueObserverId: String) {
@@ -411,6 +540,7 @@ class WellbeingService(private val context: Context) {
 				}
 			}
 			"Reminder" -> {
+				channelStage.ensure()
 				dropAppTimer(parsed)
 				parsed.pkgs.forEach {
 					if (it == null) return@forEach
@@ -436,7 +566,10 @@ class WellbeingService(private val context: Context) {
 					)
 				}
 			}
-			"AppBreak" -> endBreak(parsed.pkgs)
+			"AppBreak" -> { // registered by older versions, breaks are deadlines now
+				dropAppTimer(parsed)
+				endBreak(parsed.pkgs)
+			}
 			else -> {
 				Toast.makeText(context, msg, Toast.LENGTH_LONG).show()
 				dropAppTimer(parsed)
@@ -444,10 +577,7 @@ class WellbeingService(private val context: Context) {
 		}
 	}
 
-	private fun endBreak(pkgs: Array<String?>) {
-		val u = ParsedUoid("AppBreak", 0, pkgs)
-		if (!oidMap.contains(u.toString())) return
-		dropAppTimer(u)
+	private fun endBreak(pkgs: Array<out String?>) {
 		pkgs.forEach {
 			if (it == null) return@forEach
 			updateSuspendStatusForApp(it)
@@ -464,15 +594,11 @@ class WellbeingService(private val context: Context) {
 	}
 
 	private fun takeAppTimerBreak(packageNames: Array<String?>, breakMins: Int) {
-		val u = ParsedUoid("AppBreak", 0, packageNames).toString()
-		if (!oidMap.contains(u)) {
-			updatePrefs(u, makeOid())
-		}
-		setAppTimerInternal(u, packageNames, Duration.ofMinutes(breakMins.toLong()), getTimeUsed(usm, packageNames))
-		packageNames.forEach {
-			if (it != null) {
-				updateSuspendStatusForApp(it)
-			}
+		val pkgs = packageNames.filterNotNull().toTypedArray()
+		deadlines.schedule(DeadlineScheduler.Kind.APP_TIMER_BREAK, pkgs,
+			clock.millis() + breakMins * 60 * 1000L)
+		pkgs.forEach {
+			updateSuspendStatusForApp(it)
 		}
 	}
 
@@ -504,116 +630,58 @@ class WellbeingService(private val context: Context) {
 		if (oidMap.contains(u.toString())) dropAppTimer(u)
 		u = ParsedUoid("AppLimit", oldLimit.toMillis(), s)
 		if (oidMap.contains(u.toString())) dropAppTimer(u)
-		u = ParsedUoid("AppBreak", 0, s)
-		if (oidMap.contains(u.toString())) dropAppTimer(u)
+		deadlines.cancel(DeadlineScheduler.Kind.APP_TIMER_BREAK, arrayOf(pkgName))
 		u = ParsedUoid("Reminder", 0, s)
 		if (oidMap.contains(u.toString())) dropAppTimer(u)
 		loadAppTimer(pkgName)
 	}
 
 	fun onBootCompleted() {
+		scheduleStage.ensure()
+		mainStage.ensure()
 		// Try to reconnect to frameworkService if the first connection failed.
 		frameworkService.tryConnect()
 		loadAppTimers()
-		doUpdateTile(FocusModeQSTile::class.java)
-		doUpdateTile(BedtimeModeQSTile::class.java)
+		tiles.refreshAll()
 		onStateChanged()
 	}
 
-	private fun doUpdateTile(tile: Class<out TileService>) {
-		TileService.requestListeningState(context, ComponentName(context, tile))
-	}
-
-	private fun updateServiceStatus() {
+	private fun updateServiceStatus(): State {
 		loadSettings()
-		loadSchedcfg()
 		updateWidget(ScreenTimeAppWidget::class.java)
 		val state = getState()
 		val needServiceRunning = state.isFocusModeEnabled() || state.isSuspendedManually() || state.isBedtimeModeEnabled()
-		val next = {
-			if (state.isFocusModeEnabled()) {
-				if (state.isOnFocusModeBreakGlobal()) {
-					host?.updateNotification(
-						R.string.focus_mode,
-						R.string.notification_focus_mode_break,
-						R.drawable.outline_badge_24,
-						arrayOf(
-							host?.buildAction(
-								R.string.focus_mode_break_end, R.drawable.ic_take_break, Intent(
-									context,
-									NotificationBroadcastReceiver::class.java
-								).setAction(INTENT_ACTION_QUIT_BREAK), true
-							),
-							host?.buildAction(
-								R.string.focus_mode_off, R.drawable.baseline_cancel_24, Intent(
-									context,
-									NotificationBroadcastReceiver::class.java
-								).setAction(INTENT_ACTION_QUIT_FOCUS), true
-							)
-						),
-						Intent(context, MainActivity::class.java)
-					)
-				} else {
-					host?.updateNotification(
-						R.string.focus_mode,
-						R.string.notification_focus_mode,
-						R.drawable.outline_badge_24,
-						arrayOf(
-							if (focusModeBreakTimeNotification == -1) host?.buildAction(
-								R.string.focus_mode_break, R.drawable.ic_take_break, Intent(
-									context,
-									TakeBreakDialogActivity::class.java
-								), false
-							) else host?.buildAction(
-								R.string.focus_mode_break, R.drawable.ic_take_break, Intent(
-									context,
-									NotificationBroadcastReceiver::class.java
-								).setAction(INTENT_ACTION_TAKE_BREAK), true
-							),
-							host?.buildAction(
-								R.string.focus_mode_off, R.drawable.baseline_cancel_24, Intent(
-									context,
-									NotificationBroadcastReceiver::class.java
-								).setAction(INTENT_ACTION_QUIT_FOCUS), true
-							)
-						),
-						Intent(context, MainActivity::class.java)
-					)
-				}
-			} else if (state.isSuspendedManually()) {
-				host?.updateNotification(
-					R.string.notification_title,
-					R.string.notification_manual,
-					R.drawable.ic_baseline_person_24,
-					arrayOf(
-						host?.buildAction(
-							R.string.unsuspend_all, R.drawable.baseline_exit_to_app_24, Intent(
-								context,
-								NotificationBroadcastReceiver::class.java
-							).setAction(INTENT_ACTION_UNSUSPEND_ALL), true
-						)
-					),
-					Intent(context, MainActivity::class.java)
-				)
-			} else if (state.isBedtimeModeEnabled()) {
-				host?.updateNotification(
-					R.string.bedtime_mode,
-					R.string.bedtime_desc,
-					R.drawable.baseline_bedtime_24,
-					arrayOf(
-						host?.buildAction(
-							R.string.disable, R.drawable.baseline_cancel_24, Intent(
-								context,
-								NotificationBroadcastReceiver::class.java
-							).setAction(INTENT_ACTION_QUIT_BED), true
-						)
-					),
-					Intent(context, MainActivity::class.java)
-				)
+		val model = if (state.isFocusModeEnabled()) {
+			if (state.isOnFocusModeBreakGlobal()) {
+				NotificationModel(R.string.focus_mode, R.string.notification_focus_mode_break, R.drawable.outline_badge_24, listOf(
+					NotificationModel.Action(R.string.focus_mode_break_end, R.drawable.ic_take_break,
+						NotificationBroadcastReceiver::class.java, INTENT_ACTION_QUIT_BREAK, true),
+					NotificationModel.Action(R.string.focus_mode_off, R.drawable.baseline_cancel_24,
+						NotificationBroadcastReceiver::class.java, INTENT_ACTION_QUIT_FOCUS, true)
+				))
 			} else {
-				host?.updateDefaultNotification()
+				NotificationModel(R.string.focus_mode, R.string.notification_focus_mode, R.drawable.outline_badge_24, listOf(
+					if (focusModeBreakTimeNotification == -1) NotificationModel.Action(R.string.focus_mode_break,
+						R.drawable.ic_take_break, TakeBreakDialogActivity::class.java, null, false)
+					else NotificationModel.Action(R.string.focus_mode_break, R.drawable.ic_take_break,
+						NotificationBroadcastReceiver::class.java, INTENT_ACTION_TAKE_BREAK, true),
+					NotificationModel.Action(R.string.focus_mode_off, R.drawable.baseline_cancel_24,
+						NotificationBroadcastReceiver::class.java, INTENT_ACTION_QUIT_FOCUS, true)
+				))
 			}
-		}
+		} else if (state.isSuspendedManually()) {
+			NotificationModel(R.string.notification_title, R.string.notification_manual, R.drawable.ic_baseline_person_24, listOf(
+				NotificationModel.Action(R.string.unsuspend_all, R.drawable.baseline_exit_to_app_24,
+					NotificationBroadcastReceiver::class.java, INTENT_ACTION_UNSUSPEND_ALL, true)
+			))
+		} else if (state.isBedtimeModeEnabled()) {
+			NotificationModel(R.string.bedtime_mode, R.string.bedtime_desc, R.drawable.baseline_bedtime_24, listOf(
+				NotificationModel.Action(R.string.disable, R.drawable.baseline_cancel_24,
+					NotificationBroadcastReceiver::class.java, INTENT_ACTION_QUIT_BED, true)
+			))
+		} else null
+		// the host skips the notify if this is what it already shows
+		val next = { host?.showNotification(model) }
 		if (needServiceRunning) {
 			if (host == null) {
 				startServiceAnd {
@@ -628,6 +696,7 @@ class WellbeingService(private val context: Context) {
 			}
 			next()
 		}
+		return state
 	}
 
 	fun onManuallyUnsuspended(packageName: String) {
@@ -686,59 +755,163 @@ class WellbeingService(private val context: Context) {
 		}
 	}
 
+	// A suspend dialog, as resources for our own calls and as text for the framework.
+	private inner class SuspendDialog(val title: Int, val message: String, val icon: Int,
+	                                  val frameworkIcon: Int, val buttonText: Int, val buttonAction: Int) {
+		fun toInfo(): SuspendDialogInfo {
+			return SuspendDialogInfo.Builder()
+				.setTitle(title)
+				.setMessage(message)
+				.setIcon(icon)
+				.setNeutralButtonText(buttonText)
+				.setNeutralButtonAction(buttonAction)
+				.build()
+		}
+
+		fun toSpec(): Bundle {
+			return FrameworkBatch.dialog(context.getString(title), message, context.getString(buttonText),
+				buttonAction, frameworkIcon)
+		}
+	}
+
+	// Whether state keeps the app suspended, the cases updateSuspendStatusForApp() has a dialog for.
+	private fun isSuspendedBy(state: State): Boolean {
+		return (state.isFocusModeEnabled() && !(state.isOnFocusModeBreakGlobal() || state.isOnFocusModeBreakPartial())) ||
+				state.isSuspendedManually() || (state.isAppTimerExpired() && !state.isAppTimerBreak())
+	}
+
 	private fun updateSuspendStatusForApp(packageName: String) {
 		val state = getAppState(packageName)
-		val f: Array<String> = if (state.isFocusModeEnabled() && !(state.isOnFocusModeBreakGlobal() || state.isOnFocusModeBreakPartial())) {
+		val dialog = if (state.isFocusModeEnabled() && !(state.isOnFocusModeBreakGlobal() || state.isOnFocusModeBreakPartial())) {
 			val label: CharSequence = try {
 				getApplicationLabel(packageName, false)
 			} catch (e: PackageManager.NameNotFoundException) {
 				BUG("tried to suspend nonexistant app: $packageName")
 				return
 			}
-			val di = SuspendDialogInfo.Builder()
-				.setTitle(R.string.focus_mode_enabled)
-				.setMessage(context.getString(R.string.focus_mode_dialog, label))
-				.setIcon(R.drawable.ic_focus_mode)
-				.setNeutralButtonText(if (focusModeBreakTimeDialog == -1) R.string.dialog_btn_settings else getUseAppForString(focusModeBreakTimeDialog))
-				.setNeutralButtonAction(if (focusModeBreakTimeDialog == -1) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
-				.build()
-			pmd.setPackagesSuspended(arrayOf(packageName), true, null, null, di)
+			SuspendDialog(R.string.focus_mode_enabled, context.getString(R.string.focus_mode_dialog, label),
+				R.drawable.ic_focus_mode, FrameworkBatch.ICON_FOCUS_MODE,
+				if (focusModeBreakTimeDialog == -1) R.string.dialog_btn_settings else getUseAppForString(focusModeBreakTimeDialog),
+				if (focusModeBreakTimeDialog == -1) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
 		} else if (state.isSuspendedManually()) {
-			val di = SuspendDialogInfo.Builder()
-				.setTitle(R.string.dialog_title)
-				.setMessage(R.string.dialog_message)
-				.setIcon(R.drawable.ic_baseline_app_blocking_24)
-				.setNeutralButtonText(if (!manualSuspendDialog) R.string.dialog_btn_settings else (if (manualSuspendAllApps) R.string.unsuspend_all else R.string.unsuspend))
-				.setNeutralButtonAction(if (!manualSuspendDialog) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
-				.build()
-			pmd.setPackagesSuspended(arrayOf(packageName), true, null, null, di)
+			SuspendDialog(R.string.dialog_title, context.getString(R.string.dialog_message),
+				R.drawable.ic_baseline_app_blocking_24, FrameworkBatch.ICON_APP_BLOCKING,
+				if (!manualSuspendDialog) R.string.dialog_btn_settings else (if (manualSuspendAllApps) R.string.unsuspend_all else R.string.unsuspend),
+				if (!manualSuspendDialog) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
 		} else if (state.isAppTimerExpired() && !state.isAppTimerBreak()) {
-			pmd.setPackagesSuspended(
-				arrayOf(packageName), true, null, null, SuspendDialogInfo.Builder()
-					.setTitle(R.string.app_timers)
-					.setMessage(context.getString(R.string.app_timer_exceed_f, getApplicationLabel(packageName)))
-					.setNeutralButtonText(if (appTimerDialogBreakTime == -1) R.string.dialog_btn_settings else getUseAppForString(appTimerDialogBreakTime))
-					.setNeutralButtonAction(if (appTimerDialogBreakTime == -1) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
-					.setIcon(R.drawable.ic_focus_mode).build()
-			)
-		} else {
-			pmd.setPackagesSuspended(arrayOf(packageName), false, null, null, null)
+			SuspendDialog(R.string.app_timers, context.getString(R.string.app_timer_exceed_f, getApplicationLabel(packageName)),
+				R.drawable.ic_focus_mode, FrameworkBatch.ICON_FOCUS_MODE,
+				if (appTimerDialogBreakTime == -1) R.string.dialog_btn_settings else getUseAppForString(appTimerDialogBreakTime),
+				if (appTimerDialogBreakTime == -1) SuspendDialogInfo.BUTTON_ACTION_MORE_DETAILS else SuspendDialogInfo.BUTTON_ACTION_UNSUSPEND)
+		} else null
+		if (hasWellbeingSuspendCapabilities()) {
+			// collect everything changed in this pass, the framework applies it in one call
+			if (pendingSuspends.isEmpty()) handler.post(flushSuspends)
+			pendingSuspends.remove(packageName) // keep the order of the last change
+			pendingSuspends[packageName] = dialog
+			return
 		}
+		suspendLocally(packageName, dialog)
+	}
+
+	private fun suspendLocally(packageName: String, dialog: SuspendDialog?) {
+		val f = pmd.setPackagesSuspended(arrayOf(packageName), dialog != null, null, null, dialog?.toInfo())
 		for (s in f) {
 			BUG("Failed to (un)suspend package: $s")
 		}
+		if (dialog != null && f.isEmpty()) locallySuspended.add(packageName) else if (dialog == null) locallySuspended.remove(packageName)
+	}
+
+	private fun hasWellbeingSuspendCapabilities(): Boolean {
+		// before Android 13 the dialog title and button can't be passed as text
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU && frameworkService.hasCapability(FrameworkCapabilities.SUSPEND) && frameworkService.hasCapability(FrameworkCapabilities.BATCH)
+	}
+
+	// Packages the framework suspended for us, they can only be unsuspended through it.
+	private val frameworkSuspended = context.getSharedPreferences("framework_suspended", 0)
+	// Packages we suspended ourselves. Before the first hand over that is every package the
+	// journal or an expired app timer keeps suspended and the framework didn't suspend.
+	private val locallySuspended = (perAppState.keys + config.all.keys).filterTo(HashSet()) {
+		!frameworkSuspended.contains(it) && isSuspendedBy(getAppState(it))
+	}
+	private val pendingSuspends = LinkedHashMap<String, SuspendDialog?>()
+	private val flushSuspends = Runnable { flushSuspendsNow(null) }
+
+	// Sends everything pending as one oneway batch, onApplied gets the packages the framework
+	// took care of. What it could not do (or a batch dropped while it went away) is done locally.
+	private fun flushSuspendsNow(onApplied: ((Set<String>) -> Unit)?) {
+		val pkgs = pendingSuspends.keys.toTypedArray()
+		val dialogs = pendingSuspends.values.toTypedArray()
+		pendingSuspends.clear()
+		if (pkgs.isEmpty() || !frameworkService.isConnected()) {
+			// reconnecting, do it ourselves for now and hand it over once it is back
+			pkgs.forEachIndexed { i, p -> suspendLocally(p, dialogs[i]) }
+			onApplied?.invoke(emptySet())
+			return
+		}
+		val ops = Array<Bundle?>(pkgs.size) { FrameworkBatch.suspend(arrayOf(pkgs[it]), dialogs[it] != null, dialogs[it]?.toSpec()) }
+		frameworkService.runBatch(ops) { results ->
+			val applied = HashSet<String>()
+			val e = frameworkSuspended.edit()
+			pkgs.forEachIndexed { i, p ->
+				if (results[i] != FrameworkBatch.RESULT_OK) {
+					Log.e("WellbeingService", "framework failed to (un)suspend $p: ${results[i]}")
+					suspendLocally(p, dialogs[i])
+				} else {
+					applied.add(p)
+					if (dialogs[i] != null) e.putBoolean(p, true) else e.remove(p)
+				}
+			}
+			e.apply()
+			onApplied?.invoke(applied)
+		}
+	}
+
+	/*
+	 * Moves suspensions to the framework once it (again) can do them: re-applies the wanted
+	 * state of everything either side suspended through the framework, then drops our own
+	 * suspensions in one call. The package stays suspended in between, as long as either
+	 * suspender holds it.
+	 */
+	private fun handOverSuspensions() {
+		if (!hasWellbeingSuspendCapabilities() || !frameworkService.isConnected()) return
+		val ours = locallySuspended.toTypedArray()
+		val pkgs = HashSet<String>(frameworkSuspended.all.keys)
+		pkgs.addAll(ours)
+		if (pkgs.isEmpty()) return
+		pkgs.forEach { updateSuspendStatusForApp(it) }
+		handler.removeCallbacks(flushSuspends)
+		flushSuspendsNow { applied ->
+			// only drop our suspensions the framework now holds (or released, if no longer wanted)
+			val handedOver = ours.filter { applied.contains(it) }.toTypedArray()
+			if (handedOver.isNotEmpty()) {
+				pmd.setPackagesSuspended(handedOver, false, null, null, null)
+				locallySuspended.removeAll(handedOver.toSet())
+			}
+		}
+	}
+
+	// Last resort if we lost track of why a package is suspended.
+	fun forceUnsuspend(packageName: String) {
+		pmd.setPackagesSuspended(arrayOf(packageName), false, null, null, null)
+		locallySuspended.remove(packageName)
+		if (frameworkSuspended.contains(packageName)) {
+			frameworkService.runBatch(arrayOf(FrameworkBatch.suspend(arrayOf(packageName), false))) { results ->
+				if (results[0] == FrameworkBatch.RESULT_OK) frameworkSuspended.edit().remove(packageName).apply()
+			}
+		}
 	}
 
 	private fun setFocusModeStateForPkgInternal(s: String, suspend: Boolean, forBreak: Boolean, forAppBreak: Boolean) {
 		if (suspend) {
-			perAppState[s] = (perAppState.getOrDefault(s, 0) or State.STATE_FOCUS_MODE_ENABLED) and State.STATE_FOCUS_MODE_APP_BREAK.inv()
+			setPerAppState(s, (perAppState.getOrDefault(s, 0) or State.STATE_FOCUS_MODE_ENABLED) and State.STATE_FOCUS_MODE_APP_BREAK.inv())
 		} else {
 			if (forBreak) {
 				if (forAppBreak) {
-					perAppState[s] = perAppState.getOrDefault(s, 0) or (State.STATE_FOCUS_MODE_APP_BREAK)
+					setPerAppState(s, perAppState.getOrDefault(s, 0) or (State.STATE_FOCUS_MODE_APP_BREAK))
 				}
 			} else {
-				perAppState[s] = perAppState.getOrDefault(s, 0) and (State.STATE_FOCUS_MODE_ENABLED.inv() and State.STATE_FOCUS_MODE_APP_BREAK.inv())
+				setPerAppState(s, perAppState.getOrDefault(s, 0) and (State.STATE_FOCUS_MODE_ENABLED.inv() and State.STATE_FOCUS_MODE_APP_BREAK.inv()))
 			}
 		}
 
@@ -746,71 +919,65 @@ class WellbeingService(private val context: Context) {
 	}
 
 	private fun isValidFocusPkg(packageName: String): Boolean {
+		blacklistStage.ensure() // every focus mode path ends up here, possibly before startDeferred() got to it
 		return !Utils.blackListedPackages.contains(packageName) && !Utils.restrictedPackages.contains(packageName)
 	}
 
 	fun enableFocusMode() {
 		loadSettings()
 
-		val spref = context.getSharedPreferences("appLists", 0)
-		val st = spref.getStringSet("focus_mode", null)
-		if (st == null) {
-			BUG("st == null")
+		if (!focusModeList.isConfigured()) {
+			BUG("focus mode list not configured")
 			return
 		}
 
 		isFocusModeEnabled = true
 		isFocusModeBreak = false
 
-		for (s in getInstalledApplications(PackageManager.GET_META_DATA))
-			if (((!focusModeInvertSelection && st.contains(s.packageName)) || (focusModeInvertSelection && !st.contains(s.packageName))) && isValidFocusPkg(s.packageName))
-				setFocusModeStateForPkgInternal(s.packageName, suspend = true, forBreak = false, forAppBreak = false)
-
-		onStateChanged()
+		packageIndex.getPackageNamesAsync { names ->
+			val members = focusModeList.effectiveMembers(names).filterTo(HashSet()) { isValidFocusPkg(it) }
+			for (s in members)
+				setFocusModeStateForPkgInternal(s, suspend = true, forBreak = false, forAppBreak = false)
+			setFocusModeDesaturated(if (focusModeGreyscale) members else emptySet())
 
-		doUpdateTile(FocusModeQSTile::class.java)
+			onStateChanged()
+		}
 	}
 
 	fun disableFocusMode() {
 		loadSettings()
 
-		val spref = context.getSharedPreferences("appLists", 0)
-		val st = spref.getStringSet("focus_mode", null)
-		if (st == null) {
-			BUG("st == null")
+		if (!focusModeList.isConfigured()) {
+			BUG("focus mode list not configured")
 			return
 		}
 
-		if (isFocusModeBreak) {
-			handler.removeCallbacks(breakEndedCallback)
-		}
-		oneAppUnsuspendCallbacks.forEach { handler.removeCallbacks(it) }
-		oneAppUnsuspendCallbacks.clear()
+		deadlines.cancelAll(DeadlineScheduler.Kind.FOCUS_MODE_BREAK)
+		deadlines.cancelAll(DeadlineScheduler.Kind.FOCUS_MODE_APP_BREAK)
 
 		isFocusModeEnabled = false
 		isFocusModeBreak = false
 
-		for (s in getInstalledApplications(PackageManager.GET_META_DATA))
-			if (((!focusModeInvertSelection && st.contains(s.packageName)) || (focusModeInvertSelection && !st.contains(s.packageName))) && isValidFocusPkg(s.packageName))
-				setFocusModeStateForPkgInternal(s.packageName, suspend = false, forBreak = false, forAppBreak = false)
+		packageIndex.getPackageNamesAsync { names ->
+			for (s in focusModeList.effectiveMembers(names))
+				if (isValidFocusPkg(s))
+					setFocusModeStateForPkgInternal(s, suspend = false, forBreak = false, forAppBreak = false)
+			setFocusModeDesaturated(emptySet())
 
-		onStateChanged()
-
-		doUpdateTile(FocusModeQSTile::class.java)
+			onStateChanged()
+		}
 	}
 
 	fun onFocusModePreferenceChanged(packageName: String) {
 		loadSettings()
 
-		val spref = context.getSharedPreferences("appLists", 0)
-		val st = spref.getStringSet("focus_mode", null)
-		if (st == null) {
-			BUG("st == null")
+		if (!focusModeList.isConfigured()) {
+			BUG("focus mode list not configured")
 			return
 		}
 
 		setFocusModeStateForPkgInternal(packageName, isFocusModeEnabled && isValidFocusPkg(packageName) &&
-				((!focusModeInvertSelection && st.contains(packageName)) || (focusModeInvertSelection && !st.contains(packageName)))
+				focusModeList.contains(packageName)
 				&& !isFocusModeBreak, isFocusModeEnabled && isFocusModeBreak, false)
 	}
 
@@ -831,8 +998,6 @@ class WellbeingService(private val context: Context) {
 		b.show()
 	}
 
-	private val breakEndedCallback = Runnable { endFocusModeBreak(false) }
-
 	@JvmOverloads
 	fun endFocusModeBreak(needCancel: Boolean = true) {
 		loadSettings()
@@ -847,27 +1012,26 @@ class WellbeingService(private val context: Context) {
 		}
 
 		if (needCancel) {
-			handler.removeCallbacks(breakEndedCallback)
+			deadlines.cancel(DeadlineScheduler.Kind.FOCUS_MODE_BREAK, emptyArray())
 		}
 
 		isFocusModeBreak = false
 
-		val spref = context.getSharedPreferences("appLists", 0)
-		val st = spref.getStringSet("focus_mode", null)
-		if (st == null) {
-			BUG("st == null")
+		if (!focusModeList.isConfigured()) {
+			BUG("focus mode list not configured")
 			return
 		}
 
-		for (packageName in st) {
-			setFocusModeStateForPkgInternal(packageName, suspend = true, forBreak = true, forAppBreak = false)
-		}
+		packageIndex.getPackageNamesAsync { names ->
+			for (packageName in focusModeList.effectiveMembers(names)) {
+				if (!isValidFocusPkg(packageName)) continue
+				setFocusModeStateForPkgInternal(packageName, suspend = true, forBreak = true, forAppBreak = false)
+			}
 
-		onStateChanged()
+			onStateChanged()
+		}
 	}
 
-	private val oneAppUnsuspendCallbacks = ArrayList<Runnable>()
-
 	private fun takeFocusModeBreak(packageNames: Array<String>?, breakMins: Int) {
 		loadSettings()
 
@@ -887,16 +1051,8 @@ class WellbeingService(private val context: Context) {
 		for (packageName in packageNames) {
 			setFocusModeStateForPkgInternal(packageName, suspend = false, forBreak = true, forAppBreak = true)
 		}
-		val r = object : Runnable {
-			override fun run() {
-				oneAppUnsuspendCallbacks.remove(this)
-				for (packageName in packageNames) {
-					setFocusModeStateForPkgInternal(packageName, isFocusModeEnabled, isFocusModeEnabled, true)
-				}
-			}
-		}
-		oneAppUnsuspendCallbacks.add(r)
-		handler.postDelayed(r, breakMins * 60 * 1000L)
+		deadlines.schedule(DeadlineScheduler.Kind.FOCUS_MODE_APP_BREAK, packageNames,
+			clock.millis() + breakMins * 60 * 1000L)
 
 		onStateChanged()
 	}
@@ -912,39 +1068,56 @@ class WellbeingService(private val context: Context) {
 			BUG("Focus mode break active")
 			return
 		}
-		val spref = context.getSharedPreferences("appLists", 0)
-		val st = spref.getStringSet("focus_mode", null)
-		if (st == null) {
-			BUG("st == null")
+		if (!focusModeList.isConfigured()) {
+			BUG("focus mode list not configured")
 			return
 		}
 
 		isFocusModeBreak = true
 
-		for (packageName in st) {
-			setFocusModeStateForPkgInternal(packageName, suspend = false, forBreak = true, forAppBreak = false)
-		}
+		deadlines.schedule(DeadlineScheduler.Kind.FOCUS_MODE_BREAK, emptyArray(),
+			clock.millis() + breakMins * 60 * 1000L)
 
-		handler.postDelayed(breakEndedCallback, breakMins * 60 * 1000L)
+		packageIndex.getPackageNamesAsync { names ->
+			for (packageName in focusModeList.effectiveMembers(names)) {
+				if (!isValidFocusPkg(packageName)) continue
+				setFocusModeStateForPkgInternal(packageName, suspend = false, forBreak = true, forAppBreak = false)
+			}
 
-		onStateChanged()
+			onStateChanged()
+		}
+	}
+
+	private fun onDeadline(deadline: DeadlineScheduler.Deadline) {
+		when (deadline.kind) {
+			DeadlineScheduler.Kind.FOCUS_MODE_BREAK -> {
+				if (isFocusModeEnabled && isFocusModeBreak) {
+					endFocusModeBreak(false)
+				}
+			}
+			DeadlineScheduler.Kind.FOCUS_MODE_APP_BREAK -> {
+				for (packageName in deadline.packageNames) {
+					setFocusModeStateForPkgInternal(packageName, isFocusModeEnabled, isFocusModeEnabled, true)
+				}
+				onStateChanged()
+			}
+			DeadlineScheduler.Kind.APP_TIMER_BREAK -> endBreak(deadline.packageNames)
+		}
 	}
 
 	fun manualSuspend(packageNamesI: Array<String>?) {
 		loadSettings()
 
 		val packageNames: Array<String> = if (packageNamesI == null) {
-			val spref = context.getSharedPreferences("appLists", 0)
-			val packageNamesT = spref.getStringSet("manual_suspend", null)
-			if (packageNamesT == null) {
-				BUG("packagesNames == null")
+			if (!manualSuspendList.isConfigured()) {
+				BUG("manual suspend list not configured")
 				return
 			}
-			packageNamesT.toTypedArray()
+			manualSuspendList.getMembers().toTypedArray()
 		} else packageNamesI
 
 		for (s in packageNames) {
-			perAppState[s] = perAppState.getOrDefault(s, 0) or State.STATE_MANUAL_SUSPEND
+			setPerAppState(s, perAppState.getOrDefault(s, 0) or State.STATE_MANUAL_SUSPEND)
 			updateSuspendStatusForApp(s)
 		}
 
@@ -955,17 +1128,15 @@ class WellbeingService(private val context: Context) {
 		loadSettings()
 
 		val packageNames: Array<String> = if (packageNamesI == null) {
-			val spref = context.getSharedPreferences("appLists", 0)
-			val packageNamesT = spref.getStringSet("manual_suspend", null)
-			if (packageNamesT == null) {
-				BUG("packagesNames == null")
+			if (!manualSuspendList.isConfigured()) {
+				BUG("manual suspend list not configured")
 				return
 			}
-			packageNamesT.toTypedArray()
+			manualSuspendList.getMembers().toTypedArray()
 		} else packageNamesI
 
 		for (s in packageNames) {
-			perAppState[s] = perAppState.getOrDefault(s, 0) and State.STATE_MANUAL_SUSPEND.inv()
+			setPerAppState(s, perAppState.getOrDefault(s, 0) and State.STATE_MANUAL_SUSPEND.inv())
 			updateSuspendStatusForApp(s)
 		}
 
@@ -1111,74 +1282,67 @@ class WellbeingService(private val context: Context) {
 	}
 	// end time limit core
 
-	fun onUpdatePowerConnection() {
-		val batteryStatus: Intent? = IntentFilter(Intent.ACTION_BATTERY_CHANGED).let { context.registerReceiver(null, it) }
-
-		val chargePlug: Int = batteryStatus?.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1) ?: -1
-		val charging = chargePlug == BatteryManager.BATTERY_PLUGGED_USB ||
-				chargePlug == BatteryManager.BATTERY_PLUGGED_AC
-
-		doTrigger(!charging) { it is TimeChargerTriggerCondition && it.needCharger }
+	private fun onPowerStateChanged(charging: Boolean) {
+		schedules.evaluate()
 	}
 
-	private fun ensureSchedSetup() {
-		triggers.forEach { it.setup(context, this) }
-	}
-
-	private fun triggerFired(expire: Boolean, trigger: Trigger) {
-		when (trigger.id) {
+	private fun onModeScheduleEdge(id: String, active: Boolean) {
+		when (id) {
 			"bedtime_mode" -> {
-				if (expire && bedtimeModeEnabled) {
+				if (!active && bedtimeModeEnabled) {
 					setBedtimeMode(false)
-				} else if (!expire) {
+				} else if (active) {
 					setBedtimeMode(true)
 				}
 			}
 			"focus_mode" -> {
-				if (expire && isFocusModeEnabled) {
+				if (!active && isFocusModeEnabled) {
 					disableFocusMode()
-				} else if (!expire) {
+				} else if (active) {
 					enableFocusMode()
 				}
 			}
 			else -> {
-				BUG("invalid trigger id ${trigger.id} expire=$expire")
+				BUG("invalid trigger id $id active=$active")
 			}
 		}
 	}
 
-	fun doTrigger(expire: Boolean, condition: (Trigger) -> Boolean) {
-		triggers.forEach { fired ->
-			if (condition(fired) && // is this the trigger we're searching for?
-				(expire || // is this an deactivation request?
-						(fired !is Condition) || // if this trigger is an condition, it needs to be fulfilled
-						fired.isFulfilled(context, this))) {
-				triggerFired(expire, fired)
-			}
-		}
+	fun onNextAlarmClockChanged() {
+		scheduleStage.ensure()
+		alc.updateState()
+	}
+
+	fun onWakeupAlarm(firedIds: Array<String>?) {
+		scheduleStage.ensure() // the wakeup may be what started the process
+		alarms.onWakeup(firedIds)
 	}
 
+	// Also still receives single alarms armed by older versions.
 	fun onAlarmFired(id: String) {
+		scheduleStage.ensure()
 		if ("alc" == id) {
-			alc.fired()
+			alc.updateState()
+			schedules.onAlarmClock()
+			return
+		}
+		if ("deadline" == id) {
+			deadlines.fireDue()
 			return
 		}
-		var t = false
-		val nid = if (id.startsWith("expire::")) {
-			t = true
-			id.substring(8)
-		} else id
-		doTrigger(t) { it is TimeChargerTriggerCondition && it.iid == nid }
+		// ModeScheduleResolver.ALARM_PREFIX, or a trigger alarm of an older version
+		schedules.evaluate()
 	}
 
 	fun setTriggersForId(id: String, triggersIn: Array<out Trigger>) {
-		triggers.filter { id == it.id }.forEach { it.dispose(context, this) }
+		scheduleStage.ensure()
 		triggers = triggers.filterNot { id == it.id }.toSet().plus(triggersIn)
-		writeSchedcfg()
-		ensureSchedSetup()
+		scheduleStore.replaceForId(id, triggersIn)
+		schedules.setTriggers(triggers)
 	}
 
 	fun getTriggersForId(id: String): List<Trigger> {
+		scheduleStage.ensure()
 		return triggers.filter { id == it.id }
 	}
 }
\ No newline at end of file
@@ -15,6 +15,71 @@ import org.eu.droid_ng.wellbeing.R
 import org.eu.droid_ng.wellbeing.lib.WellbeingStateHost.LocalBinder
 import java.util.function.Consumer
 
+// Lifecycle of WellbeingStateHost. It always runs in our process, so we just track it here.
+object HostLifecycle {
+    enum class State { STOPPED, STARTING, RUNNING, STOPPING }
+
+    @Volatile var state = State.STOPPED
+        private set
+    @Volatile var host: WellbeingStateHost? = null
+        private set
+    private val waiters = ArrayList<Consumer<WellbeingStateHost>>()
+
+    fun isRunning(): Boolean {
+        return state == State.RUNNING
+    }
+
+    // Runs callback (on the main thread) once the host is running, right away if it already is.
+    fun awaitRunning(callback: Consumer<WellbeingStateHost>) {
+        val h = synchronized(this) {
+            host.takeIf { state == State.RUNNING } ?: run {
+                waiters.add(callback)
+                return
+            }
+        }
+        callback.accept(h)
+    }
+
+    fun onStarting() {
+        synchronized(this) {
+            if (state == State.RUNNING) return
+            state = State.STARTING
+        }
+    }
+
+    fun onRunning(h: WellbeingStateHost) {
+        val w = synchronized(this) {
+            host = h
+            state = State.RUNNING
+            waiters.toTypedArray().also { waiters.clear() }
+        }
+        w.forEach { it.accept(h) }
+    }
+
+    fun onStopping() {
+        synchronized(this) {
+            if (state != State.STOPPED) state = State.STOPPING
+        }
+    }
+
+    // Waiters stay queued, they get the next host.
+    fun onStopped() {
+        synchronized(this) {
+            host = null
+            state = State.STOPPED
+        }
+    }
+
+    // The host could not be started, so nobody is going to run the waiters. Drop them.
+    fun onStartFailed() {
+        synchronized(this) {
+            host = null
+            state = State.STOPPED
+            waiters.clear()
+        }
+    }
+}
+
 // Helper to connect to WellbeingStateHost
 class WellbeingStateClient(context: Context) {
     // Our context
@@ -57,18 +122,6 @@ class WellbeingStateClient(context: Context) {
 		}*/
     }
 
-    //backward compatibility does what we want, so ignore warning
-    @Suppress("deprecation")
-    fun isServiceRunning(): Boolean {
-        val manager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
-        for (service in manager.getRunningServices(Int.MAX_VALUE)) {
-            if (WellbeingStateHost::class.java.name == service.service.className) {
-                return true
-            }
-        }
-        return false
-    }
-
     @JvmOverloads
     fun doBindService(
         callback: Consumer<WellbeingService?>,
@@ -81,17 +134,13 @@ class WellbeingStateClient(context: Context) {
             callback.accept(mBoundService!!.state)
             return true
         }
-        return if (isServiceRunning() && context.bindService(
-                Intent(context, WellbeingStateHost::class.java),
-                mConnection, Context.BIND_IMPORTANT
-            )
-        ) {
-            mShouldUnbind = true
+        return if (HostLifecycle.isRunning() && bind()) {
             true
         } else {
             if (maybeStartService) {
                 startService(lateNotify)
-                if (doBindService(callback, canHandleFailure = true, maybeStartService = false, lateNotify)) {
+                // the connection comes in once the host is created
+                if (bind()) {
                     return true
                 } else if (!canHandleFailure) {
                     Toast.makeText(
@@ -111,11 +160,25 @@ class WellbeingStateClient(context: Context) {
         }
     }
 
+    private fun bind(): Boolean {
+        mShouldUnbind = context.bindService(
+            Intent(context, WellbeingStateHost::class.java),
+            mConnection, Context.BIND_IMPORTANT
+        )
+        return mShouldUnbind
+    }
+
     @JvmOverloads
     fun startService(lateNotify: Boolean = false) {
         val i = Intent(context, WellbeingStateHost::class.java)
         i.putExtra("lateNotify", lateNotify)
-        context.startForegroundService(i)
+        HostLifecycle.onStarting()
+        try {
+            context.startForegroundService(i)
+        } catch (e: IllegalStateException) {
+            HostLifecycle.onStartFailed() // not allowed to start from the background right now
+            throw e
+        }
     }
 
     fun killService() {
@@ -127,12 +190,39 @@ class WellbeingStateClient(context: Context) {
     }
 }
 
+// Everything the host notification shows. Equal models give identical notifications.
+data class NotificationModel(
+    val title: Int,
+    val text: Int,
+    val icon: Int,
+    val actions: List<Action>
+) {
+    data class Action(
+        val text: Int,
+        val icon: Int,
+        val target: Class<*>,
+        val intentAction: String?,
+        val isBroadcast: Boolean
+    )
+
+    companion object {
+        @JvmField val DEFAULT = NotificationModel(R.string.notification_title,
+            R.string.notification_desc, R.drawable.ic_stat_name, emptyList())
+    }
+}
+
 // Fancy class holding WellbeingService & a notification
 class WellbeingStateHost : Service() {
     @JvmField
     var state: WellbeingService? = null
     private var lateNotify = false
     private var mStopped = false
+    private var shown: NotificationModel? = null
+    private val notifications = HashMap<NotificationModel, Notification>()
+    private val actions = HashMap<NotificationModel.Action, Notification.Action>()
+    private val contentIntent by lazy {
+        PendingIntent.getActivity(this, 0, Intent(this, MainActivity::class.java), PendingIntent.FLAG_IMMUTABLE)
+    }
 
     // Unique Identification Number for the Notification.
     private val notificationId = 325563
@@ -149,6 +239,7 @@ class WellbeingStateHost : Service() {
     }
 
     override fun onCreate() {
+        HostLifecycle.onStarting() // also when the system restarts us
         state = WellbeingService.get()
     }
 
@@ -171,30 +262,28 @@ class WellbeingStateHost : Service() {
             lateNotify = intent.getBooleanExtra("lateNotify", lateNotify)
         }
 
-        val n = buildDefaultNotification()
+        val n = getNotification(NotificationModel.DEFAULT)
 
         // Notification ID cannot be 0.
         startForeground(notificationId, n)
+        shown = NotificationModel.DEFAULT
 
         state?.bindToHost(this)
+        HostLifecycle.onRunning(this)
 
         return START_STICKY
     }
 
-    fun buildAction(
-        actionText: Int,
-        actionIcon: Int,
-        actionIntent: Intent?,
-        isBroadcast: Boolean
-    ): Notification.Action {
-        val pendingIntent = if (isBroadcast) {
-            PendingIntent.getBroadcast(this, 0, actionIntent!!, PendingIntent.FLAG_IMMUTABLE)
+    private fun buildAction(action: NotificationModel.Action): Notification.Action {
+        val intent = Intent(this, action.target).setAction(action.intentAction)
+        val pendingIntent = if (action.isBroadcast) {
+            PendingIntent.getBroadcast(this, 0, intent, PendingIntent.FLAG_IMMUTABLE)
         } else {
-            PendingIntent.getActivity(this, 0, actionIntent, PendingIntent.FLAG_IMMUTABLE)
+            PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_IMMUTABLE)
         }
         val builder = Notification.Action.Builder(
-            Icon.createWithResource(applicationContext, actionIcon),
-            getText(actionText),
+            Icon.createWithResource(applicationContext, action.icon),
+            getText(action.text),
             pendingIntent
         )
             .setAllowGeneratedReplies(false).setContextual(true)
@@ -204,40 +293,34 @@ class WellbeingStateHost : Service() {
         return builder.build()
     }
 
-    private fun buildNotification(
-        title: Int,
-        text: String,
-        icon: Int,
-        actions: Array<Notification.Action?>,
-        notificationIntent: Intent
-    ): Notification {
-        val pendingIntent =
-            PendingIntent.getActivity(this, 0, notificationIntent, PendingIntent.FLAG_IMMUTABLE)
+    private fun buildNotification(model: NotificationModel): Notification {
+        val text = getString(model.text)
         val b = Notification.Builder(this, channelId)
-            .setSmallIcon(icon) // the status icon
+            .setSmallIcon(model.icon) // the status icon
             .setTicker(text) // the status text
             .setWhen(System.currentTimeMillis()) // the time stamp
-            .setContentTitle(getText(title)) // the label of the entry
+            .setContentTitle(getText(model.title)) // the label of the entry
             .setContentText(text) // the contents of the entry
-            .setContentIntent(pendingIntent) // The intent to send when the entry is clicked
+            .setContentIntent(contentIntent) // The intent to send when the entry is clicked
             .setOnlyAlertOnce(true) // don't headsup/bling twice
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !lateNotify) {
             b.setForegroundServiceBehavior(Notification.FOREGROUND_SERVICE_IMMEDIATE) // do not wait with showing the notification
         }
-        if (lateNotify) lateNotify = false
-        for (action in actions) {
-            if (action != null)
-                b.addAction(action)
+        for (action in model.actions) {
+            b.addAction(actions.getOrPut(action) { buildAction(action) })
         }
         return b.build()
     }
 
-    private fun buildDefaultNotification(): Notification {
-        val text = R.string.notification_desc
-        val title = R.string.notification_title
-        val icon = R.drawable.ic_stat_name
-        val notificationIntent = Intent(this, MainActivity::class.java)
-        return buildNotification(title, getString(text), icon, arrayOf(), notificationIntent)
+    private fun getNotification(model: NotificationModel): Notification {
+        if (!lateNotify) notifications[model]?.let { return it }
+        val n = buildNotification(model)
+        if (lateNotify) {
+            lateNotify = false // only for the first one, don't keep it around
+        } else {
+            notifications[model] = n
+        }
+        return n
     }
 
     private fun updateNotification(n: Notification) {
@@ -245,31 +328,16 @@ class WellbeingStateHost : Service() {
         getSystemService(NotificationManager::class.java).notify(notificationId, n)
     }
 
-    private fun updateNotification(
-        title: Int,
-        text: String,
-        icon: Int,
-        actions: Array<Notification.Action?>,
-        notificationIntent: Intent
-    ) {
-        updateNotification(buildNotification(title, text, icon, actions, notificationIntent))
-    }
-
-    fun updateNotification(
-        title: Int,
-        text: Int,
-        icon: Int,
-        actions: Array<Notification.Action?>,
-        notificationIntent: Intent
-    ) {
-        updateNotification(title, getString(text), icon, actions, notificationIntent)
-    }
-
-    fun updateDefaultNotification() {
-        updateNotification(buildDefaultNotification())
+    // Shows model, or the default notification for null. Does nothing if it is already shown.
+    fun showNotification(model: NotificationModel?) {
+        val m = model ?: NotificationModel.DEFAULT
+        if (m == shown) return
+        shown = m
+        updateNotification(getNotification(m))
     }
 
     fun stop() {
+        HostLifecycle.onStopping()
         mStopped = true
         stopForeground(STOP_FOREGROUND_REMOVE)
         stopSelf()
@@ -278,6 +346,7 @@ class WellbeingStateHost : Service() {
     override fun onDestroy() {
         super.onDestroy()
         state?.bindToHost(null)
+        HostLifecycle.onStopped()
     }
 
     override fun onBind(intent: Intent): IBinder {
@@ -0,0 +1,100 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import android.app.usage.UsageStatsManager
+import android.appwidget.AppWidgetManager
+import android.appwidget.AppWidgetProvider
+import android.content.BroadcastReceiver
+import android.content.ComponentName
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.os.Handler
+import android.os.PowerManager
+import org.eu.droid_ng.wellbeing.widget.ScreenTimeAppWidget
+
+/*
+ * Decides when the screen time widget gets redrawn. Nobody looks at it while the screen is
+ * off, so we only tick (once per wall-clock minute) while it is on, and catch up right away on
+ * SCREEN_ON and USER_PRESENT. Every tick folds the new usage events into the cache and only
+ * pushes an update if a value the widget shows (screen time or the top 3 apps and their
+ * minutes) actually changed.
+ */
+class WidgetRefreshPolicy(
+	private val context: Context,
+	private val handler: Handler,
+	private val usm: UsageStatsManager,
+	private val widget: Class<out AppWidgetProvider>
+) {
+	private val awm = AppWidgetManager.getInstance(context)
+	private var hasWidgets = false
+	private var ticking = false
+	private var lastShown: List<Long>? = null
+	private var lastTop: List<String>? = null
+	private val tick = object : Runnable {
+		override fun run() {
+			refresh()
+			scheduleTick()
+		}
+	}
+
+	init {
+		val filter = IntentFilter()
+		filter.addAction(Intent.ACTION_SCREEN_ON)
+		filter.addAction(Intent.ACTION_SCREEN_OFF)
+		filter.addAction(Intent.ACTION_USER_PRESENT)
+		context.registerReceiver(object : BroadcastReceiver() {
+			override fun onReceive(p0: Context?, p1: Intent?) {
+				if (Intent.ACTION_SCREEN_OFF == p1?.action) {
+					stopTicking()
+				} else {
+					refresh()
+					startTicking()
+				}
+			}
+		}, filter, null, handler)
+		onWidgetsChanged()
+	}
+
+	// Widgets were added or removed.
+	fun onWidgetsChanged() {
+		hasWidgets = awm.getAppWidgetIds(ComponentName(context, widget)).isNotEmpty()
+		lastShown = null
+		lastTop = null
+		if (hasWidgets && context.getSystemService(PowerManager::class.java).isInteractive) {
+			startTicking()
+		} else {
+			stopTicking()
+		}
+	}
+
+	private fun startTicking() {
+		if (ticking || !hasWidgets) return
+		ticking = true
+		scheduleTick()
+	}
+
+	private fun stopTicking() {
+		ticking = false
+		handler.removeCallbacks(tick)
+	}
+
+	private fun scheduleTick() {
+		if (!ticking) return
+		handler.removeCallbacks(tick)
+		// right after the minute turns over, that's when the shown value can change
+		handler.postDelayed(tick, 60_000L - WallClock.millis() % 60_000L + 500L)
+	}
+
+	private fun refresh() {
+		if (!hasWidgets) return
+		Utils.refreshUsageStats(usm)
+		val top = Utils.getMostUsedPackages(usm).toList()
+		val shown = ArrayList<Long>(top.size + 1)
+		shown.add(Utils.getScreenTime(usm).toMinutes())
+		top.forEach { shown.add(Utils.getTimeUsed(usm, it).toMinutes()) }
+		if (shown == lastShown && top == lastTop) return
+		lastShown = shown
+		lastTop = top
+		context.sendBroadcast(Intent(context, widget).setAction(ScreenTimeAppWidget.ACTION_REFRESH))
+	}
+}
@@ -1,9 +1,7 @@
 package org.eu.droid_ng.wellbeing.prefs;
 
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -26,10 +24,11 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.checkbox.MaterialCheckBox;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.AppCatalog;
+import org.eu.droid_ng.wellbeing.lib.PackageIndex;
 import org.eu.droid_ng.wellbeing.lib.Utils;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
-import java.text.Collator;
 import java.time.Duration;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -53,15 +52,14 @@ public class AppTimers extends AppCompatActivity {
 		assert actionBar != null;
 		actionBar.setDisplayHomeAsUpEnabled(true);
 		RecyclerView r = findViewById(R.id.appTimerPkgs);
-		new Thread(() -> {
-			AppTimersRecyclerViewAdapter a = new AppTimersRecyclerViewAdapter(this,
-					ati.getInstalledApplications(PackageManager.GET_META_DATA));
+		PackageIndex.get(this).getEntriesAsync(entries -> {
+			AppTimersRecyclerViewAdapter a = new AppTimersRecyclerViewAdapter(this, entries);
 			h.post(() -> {
 				findViewById(R.id.appTimerLoading).setVisibility(View.GONE);
 				r.setAdapter(a);
 				r.setVisibility(View.VISIBLE);
 			});
-		}).start();
+		});
 	}
 
 	@Override
@@ -70,16 +68,34 @@ public class AppTimers extends AppCompatActivity {
 		return true;
 	}
 
+	private static final Object PAYLOAD_TIMER = new Object();
+
 	public class AppTimersRecyclerViewAdapter extends RecyclerView.Adapter<AppTimersRecyclerViewAdapter.AppTimerViewHolder> {
 		private final LayoutInflater inflater;
-		private final List<ApplicationInfo> mData;
+		private final List<AppCatalog.App> mData;
+		private final Map<String, Integer> positions = new HashMap<>();
 		private final PackageManager pm;
+		private final AppCatalog catalog;
 		public final SharedPreferences prefs;
 		public final Map<String, Integer> enabledMap = new HashMap<>();
 
-		public AppTimersRecyclerViewAdapter(Context context, List<ApplicationInfo> mData) {
+		// Sort key of one row, computed once before sorting.
+		private final class Row {
+			final AppCatalog.App app;
+			final boolean enabled;
+			final long usedMillis;
+
+			Row(AppCatalog.App app) {
+				this.app = app;
+				this.enabled = enabledMap.getOrDefault(app.getPackageName(), 0) != 0;
+				this.usedMillis = Utils.getTimeUsed(ati.usm, app.getPackageName()).toMillis();
+			}
+		}
+
+		public AppTimersRecyclerViewAdapter(Context context, List<PackageIndex.Entry> mData) {
 			this.inflater = LayoutInflater.from(context);
 			this.pm = context.getPackageManager();
+			this.catalog = AppCatalog.get(context);
 			prefs = context.getSharedPreferences("appTimers", 0);
 			prefs.getAll().forEach((k, v) -> {
 				if (!(v instanceof Integer)) {
@@ -89,40 +105,21 @@ public class AppTimers extends AppCompatActivity {
 				Integer v2 = (Integer) v;
 				enabledMap.put(k, v2);
 			});
-			Collator collator = Collator.getInstance();
-			// Sort alphabetically by display name
-			Comparator<ApplicationInfo> nc = (a, b) -> {
-				Duration durationA = Utils.getTimeUsed(ati.usm, a.packageName);
-				Duration durationB = Utils.getTimeUsed(ati.usm, b.packageName);
-				int x = durationA.compareTo(durationB);
-				if (x != 0) return -x;
-				CharSequence displayA = pm.getApplicationLabel(a);
-				CharSequence displayB = pm.getApplicationLabel(b);
-				return collator.compare(displayA, displayB);
-			};
-			Intent mainIntent = new Intent(Intent.ACTION_MAIN, null)
-					.addCategory(Intent.CATEGORY_LAUNCHER);
-
-			// We already force include user apps, so let's only iterate over system apps
-			List<String> hasLauncherIcon = pm.queryIntentActivities(mainIntent, PackageManager.MATCH_SYSTEM_ONLY)
-					.stream().map(a -> a.activityInfo.packageName).collect(Collectors.toList());
-			this.mData = mData.stream().filter(i -> {
+			ati.ensureBlacklists();
+			// Enabled goes first, then by usage, then alphabetically by display name
+			this.mData = catalog.getApps(mData.stream().filter(i -> {
 				// Filter out system apps without launcher icon and Default Launcher
-				boolean isUser = (i.flags & (ApplicationInfo.FLAG_UPDATED_SYSTEM_APP | ApplicationInfo.FLAG_SYSTEM)) < 1;
-				return !Utils.blackListedPackages.contains(i.packageName) && (isUser || hasLauncherIcon.contains(i.packageName));
-			}).sorted((a, b) -> {
-				// Enabled goes first
-				boolean hasA = enabledMap.getOrDefault(a.packageName, 0) != 0;
-				boolean hasB = enabledMap.getOrDefault(b.packageName, 0) != 0;
-				if (hasA && hasB)
-					return nc.compare(a, b);
-				else if (hasA)
-					return -1;
-				else if (hasB)
-					return 1;
-				else
-					return nc.compare(a, b);
-			}).collect(Collectors.toList());
+				return !Utils.blackListedPackages.contains(i.getPackageName()) && (i.isUserApp() || i.getHasLauncherActivity());
+			}).collect(Collectors.toList())).stream()
+					.map(Row::new)
+					.sorted(Comparator.<Row, Boolean>comparing(r -> !r.enabled)
+							.thenComparing(Comparator.<Row>comparingLong(r -> r.usedMillis).reversed())
+							.thenComparing(r -> r.app.getSortKey()))
+					.map(r -> r.app)
+					.collect(Collectors.toList());
+			for (int i = 0; i < this.mData.size(); i++) {
+				positions.put(this.mData.get(i).getPackageName(), i);
+			}
 		}
 
 		@NonNull
@@ -137,17 +134,35 @@ public class AppTimers extends AppCompatActivity {
 			return mData.size();
 		}
 
-		public ApplicationInfo getItem(int i) {
+		public AppCatalog.App getItem(int i) {
 			return mData.get(i);
 		}
 
 		@Override
 		public void onBindViewHolder(@NonNull AppTimerViewHolder holder, int position) {
-			ApplicationInfo i = getItem(position);
-			int mins = prefs.getInt(i.packageName, 0);
+			AppCatalog.App i = getItem(position);
+			int mins = prefs.getInt(i.getPackageName(), 0);
 			holder.apply(i, mins);
 		}
 
+		@Override
+		public void onBindViewHolder(@NonNull AppTimerViewHolder holder, int position, @NonNull List<Object> payloads) {
+			if (payloads.contains(PAYLOAD_TIMER)) {
+				String pkgName = getItem(position).getPackageName();
+				holder.applyText(prefs.getInt(pkgName, 0), Math.toIntExact(Utils.getTimeUsed(ati.usm, pkgName).toMinutes()));
+			} else {
+				super.onBindViewHolder(holder, position, payloads);
+			}
+		}
+
+		// The row stays where it is, only its text changes.
+		private void notifyTimerChanged(String pkgName) {
+			Integer pos = positions.get(pkgName);
+			if (pos != null) {
+				notifyItemChanged(pos, PAYLOAD_TIMER);
+			}
+		}
+
 		public class AppTimerViewHolder extends RecyclerView.ViewHolder {
 			private final ViewGroup container;
 			private final AppCompatImageView appIcon;
@@ -172,25 +187,33 @@ public class AppTimers extends AppCompatActivity {
 				parent.addView(actionButton, idx);
 			}
 
-			public void apply(ApplicationInfo info, int mins) {
-				final boolean restricted = Utils.restrictedPackages.contains(info.packageName);
-				appIcon.setImageDrawable(pm.getApplicationIcon(info));
-				appName.setText(pm.getApplicationLabel(info));
-				applyText(mins, Math.toIntExact(Utils.getTimeUsed(ati.usm, info.packageName).toMinutes()));
+			public void apply(AppCatalog.App info, int mins) {
+				final boolean restricted = Utils.restrictedPackages.contains(info.getPackageName());
+				appIcon.setTag(info.getPackageName());
+				appIcon.setImageDrawable(null);
+				catalog.loadIcon(info, icon -> {
+					if (!info.getPackageName().equals(appIcon.getTag())) return; // rebound in the meantime
+					if (icon != null)
+						appIcon.setImageBitmap(icon);
+					else
+						appIcon.setImageDrawable(pm.getDefaultActivityIcon());
+				});
+				appName.setText(info.getLabel());
+				applyText(mins, Math.toIntExact(Utils.getTimeUsed(ati.usm, info.getPackageName()).toMinutes()));
 				actionButton.setEnabled(!restricted);
 				container.setOnClickListener(view -> {
 					if (restricted) return;
-					int realmins = enabledMap.getOrDefault(info.packageName, 0);
+					int realmins = enabledMap.getOrDefault(info.getPackageName(), 0);
 					NumberPicker numberPicker = new NumberPicker(AppTimers.this);
 					numberPicker.setMinValue(0);
 					numberPicker.setMaxValue(9999); //i mean why not
 					numberPicker.setValue(realmins);
 					new AlertDialog.Builder(AppTimers.this)
-							.setTitle(pm.getApplicationLabel(info))
+							.setTitle(info.getLabel())
 							.setView(numberPicker)
 							.setNegativeButton(R.string.cancel, (d,i) -> d.dismiss())
 							.setPositiveButton(R.string.ok, (d,i) -> {
-								updateMins(info.packageName, realmins, numberPicker.getValue());
+								updateMins(info.getPackageName(), realmins, numberPicker.getValue());
 								d.dismiss();
 							})
 							.show();
@@ -200,11 +223,12 @@ public class AppTimers extends AppCompatActivity {
 			private void updateMins(String pkgName, int oldmins, int mins) {
 				enabledMap.put(pkgName, mins);
 				prefs.edit().putInt(pkgName, mins).apply();
-				applyText(mins, Math.toIntExact(Utils.getTimeUsed(ati.usm, pkgName).toMinutes()));
+				notifyTimerChanged(pkgName);
 				new Thread(() -> {
 					Utils.clearUsageStatsCache(ati.usm, pm, true);
 					h.post(() -> {
-						applyText(mins, Math.toIntExact(Utils.getTimeUsed(ati.usm, pkgName).toMinutes()));
+						// this holder may show another app by now
+						notifyTimerChanged(pkgName);
 						ati.onUpdateAppTimerPreference(pkgName, Duration.ofMinutes(oldmins));
 					});
 				}).start();
@@ -13,15 +13,15 @@ import com.google.android.material.checkbox.MaterialCheckBox;
 import com.google.android.material.materialswitch.MaterialSwitch;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.State;
+import org.eu.droid_ng.wellbeing.lib.StateEventBus;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
-import java.util.function.Consumer;
-
 public class BedtimeMode extends AppCompatActivity {
 
-	private final Consumer<WellbeingService> sc = tw -> {
+	private final StateEventBus.Subscriber sc = event -> {
 		MaterialSwitch bt = findViewById(R.id.topsw);
-		bt.setChecked(tw.getState(false).isBedtimeModeEnabled());
+		bt.setChecked(event.getNewState().isBedtimeModeEnabled());
 	};
 
 	@Override
@@ -50,7 +50,7 @@ public class BedtimeMode extends AppCompatActivity {
 			boolean g = tw.getState(false).isBedtimeModeEnabled();
 			prefs.edit().putBoolean("greyscale", b).apply();
 			if (g) {
-				tw.getCdm().setSaturationLevel(b ? 0 : 100);
+				tw.setSaturationLevel(b ? 0 : 100);
 			}
 		});
 		MaterialCheckBox checkBox3 = findViewById(R.id.checkBox3);
@@ -73,14 +73,14 @@ public class BedtimeMode extends AppCompatActivity {
 		//TODO: dim the wallpaper(A13)
 		//TODO: dark theme(A13)
 
-		tw.addStateCallback(sc);
+		tw.stateEvents.subscribe(State.STATE_BED_MODE, sc);
 	}
 
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		WellbeingService tw = WellbeingService.get();
-		tw.removeStateCallback(sc);
+		tw.stateEvents.unsubscribe(sc);
 	}
 
 	@Override
@@ -2,8 +2,8 @@ package org.eu.droid_ng.wellbeing.prefs;
 
 import android.animation.LayoutTransition;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.View;
 import android.widget.LinearLayout;
 
@@ -17,13 +17,13 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.materialswitch.MaterialSwitch;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.PackageIndex;
 import org.eu.droid_ng.wellbeing.lib.State;
+import org.eu.droid_ng.wellbeing.lib.StateEventBus;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
-import java.util.function.Consumer;
-
 public class FocusModeActivity extends AppCompatActivity {
-	private final Consumer<WellbeingService> sc = service -> updateUi();
+	private final StateEventBus.Subscriber sc = event -> updateUi();
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -39,13 +39,15 @@ public class FocusModeActivity extends AppCompatActivity {
 						startActivity(new Intent(this, ScheduleActivity.class).putExtra("type", "focus_mode").putExtra("name", getString(R.string.focus_mode))));
 
 		WellbeingService tw = WellbeingService.get();
-		tw.addStateCallback(sc);
+		tw.stateEvents.subscribe(State.STATE_FOCUS_MODE_ENABLED | State.STATE_FOCUS_MODE_GLOBAL_BREAK | State.STATE_FOCUS_MODE_APP_BREAK, sc);
 
 		RecyclerView r = findViewById(R.id.focusModePkgs);
-		r.setAdapter(
-				new PackageRecyclerViewAdapter(this,
-						tw.getInstalledApplications(PackageManager.GET_META_DATA),
-						"focus_mode", tw::onFocusModePreferenceChanged));
+		Handler h = new Handler(getMainLooper());
+		PackageIndex.get(this).getEntriesAsync(entries -> {
+			PackageRecyclerViewAdapter a = new PackageRecyclerViewAdapter(this,
+					entries, "focus_mode", tw::onFocusModePreferenceChanged);
+			h.post(() -> r.setAdapter(a));
+		});
 
 		updateUi();
 	}
@@ -54,7 +56,7 @@ public class FocusModeActivity extends AppCompatActivity {
 	protected void onDestroy() {
 		super.onDestroy();
 		WellbeingService tw = WellbeingService.get();
-		tw.removeStateCallback(sc);
+		tw.stateEvents.unsubscribe(sc);
 	}
 
 	private void updateUi() {
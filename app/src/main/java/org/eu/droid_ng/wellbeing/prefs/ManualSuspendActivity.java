@@ -4,12 +4,13 @@ import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.RecyclerView;
 
-import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
 
 import com.google.android.material.button.MaterialButton;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.PackageIndex;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
 import java.util.HashSet;
@@ -27,14 +28,17 @@ public class ManualSuspendActivity extends AppCompatActivity {
 		MaterialButton suspendbtn = findViewById(R.id.suspendbtn);
 		MaterialButton unsuspendbtn = findViewById(R.id.desuspendbtn);
 		RecyclerView pkgList = findViewById(R.id.pkgList);
-		final PackageRecyclerViewAdapter a;
-		pkgList.setAdapter(
-				a = new PackageRecyclerViewAdapter(this,
-						getPackageManager().getInstalledApplications(PackageManager.GET_META_DATA),
-						"manual_suspend", null));
 		WellbeingService tw = WellbeingService.get();
 		suspendbtn.setOnClickListener(v -> tw.manualSuspend(null));
-		unsuspendbtn.setOnClickListener(v -> tw.manualUnsuspend(a.prefs.getStringSet("manual_suspend", new HashSet<>()).toArray(new String[0])));
+		Handler h = new Handler(getMainLooper());
+		PackageIndex.get(this).getEntriesAsync(entries -> {
+			PackageRecyclerViewAdapter a = new PackageRecyclerViewAdapter(this,
+					entries, "manual_suspend", null);
+			h.post(() -> {
+				pkgList.setAdapter(a);
+				unsuspendbtn.setOnClickListener(v -> tw.manualUnsuspend(a.prefs.getStringSet("manual_suspend", new HashSet<>()).toArray(new String[0])));
+			});
+		});
 	}
 
 	@Override
@@ -2,9 +2,7 @@ package org.eu.droid_ng.wellbeing.prefs;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,10 +16,11 @@ import androidx.annotation.Nullable;
 import androidx.recyclerview.widget.RecyclerView;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.AppCatalog;
+import org.eu.droid_ng.wellbeing.lib.PackageIndex;
 import org.eu.droid_ng.wellbeing.lib.Utils;
+import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
-import java.text.Collator;
-import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
@@ -30,52 +29,45 @@ import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 class PackageRecyclerViewAdapter extends RecyclerView.Adapter<PackageRecyclerViewAdapter.PackageNameViewHolder> {
+	private static final Object PAYLOAD_CHECKED = new Object();
 	private final LayoutInflater inflater;
-	private final List<ApplicationInfo> mData;
-	private final List<String> enabledArr;
+	private final List<AppCatalog.App> mData;
+	private final Set<String> enabledSet;
 	private final PackageManager pm;
+	private final AppCatalog catalog;
 	public final SharedPreferences prefs;
 	private final String settingsKey;
 	private final Consumer<String> callback;
 
-	public PackageRecyclerViewAdapter(Context context, List<ApplicationInfo> mData, String settingsKey, @Nullable Consumer<String> callback) {
+	// Sort key of one row, computed once before sorting.
+	private static final class Row {
+		final AppCatalog.App app;
+		final boolean enabled;
+
+		Row(AppCatalog.App app, boolean enabled) {
+			this.app = app;
+			this.enabled = enabled;
+		}
+	}
+
+	public PackageRecyclerViewAdapter(Context context, List<PackageIndex.Entry> mData, String settingsKey, @Nullable Consumer<String> callback) {
 		this.inflater = LayoutInflater.from(context);
 		this.pm = context.getPackageManager();
+		this.catalog = AppCatalog.get(context);
 		this.callback = callback;
 		prefs = context.getSharedPreferences("appLists", 0);
 		this.settingsKey = settingsKey;
-		Set<String> focusAppsS = prefs.getStringSet(this.settingsKey, new HashSet<>());
-		enabledArr = new ArrayList<>(focusAppsS);
-		Collator collator = Collator.getInstance();
-		// Sort alphabetically by display name
-		Comparator<ApplicationInfo> nc = (a, b) -> {
-			CharSequence displayA = pm.getApplicationLabel(a);
-			CharSequence displayB = pm.getApplicationLabel(b);
-			return collator.compare(displayA, displayB);
-		};
-		Intent mainIntent = new Intent(Intent.ACTION_MAIN, null)
-				.addCategory(Intent.CATEGORY_LAUNCHER);
-
-		// We already force include user apps, so let's only iterate over system apps
-		List<String> hasLauncherIcon = pm.queryIntentActivities(mainIntent, PackageManager.MATCH_SYSTEM_ONLY)
-				.stream().map(a -> a.activityInfo.packageName).collect(Collectors.toList());
-		this.mData = mData.stream().filter(i -> {
+		enabledSet = new HashSet<>(prefs.getStringSet(this.settingsKey, new HashSet<>()));
+		WellbeingService.get().ensureBlacklists();
+		// Enabled goes first, then alphabetically by display name
+		this.mData = catalog.getApps(mData.stream().filter(i -> {
 			// Filter out system apps without launcher icon and Settings, Dialer and Wellbeing
-			boolean isUser = (i.flags & (ApplicationInfo.FLAG_UPDATED_SYSTEM_APP | ApplicationInfo.FLAG_SYSTEM)) < 1;
-			return !Utils.restrictedPackages.contains(i.packageName) && (isUser || hasLauncherIcon.contains(i.packageName));
-		}).sorted((a, b) -> {
-			// Enabled goes first
-			boolean hasA = enabledArr.contains(a.packageName);
-			boolean hasB = enabledArr.contains(b.packageName);
-			if (hasA && hasB)
-				return nc.compare(a, b);
-			else if (hasA)
-				return -1;
-			else if (hasB)
-				return 1;
-			else
-				return nc.compare(a, b);
-		}).collect(Collectors.toList());
+			return !Utils.restrictedPackages.contains(i.getPackageName()) && (i.isUserApp() || i.getHasLauncherActivity());
+		}).collect(Collectors.toList())).stream()
+				.map(a -> new Row(a, enabledSet.contains(a.getPackageName())))
+				.sorted(Comparator.<Row, Boolean>comparing(r -> !r.enabled).thenComparing(r -> r.app.getSortKey()))
+				.map(r -> r.app)
+				.collect(Collectors.toList());
 	}
 
 	@NonNull
@@ -90,16 +82,25 @@ class PackageRecyclerViewAdapter extends RecyclerView.Adapter<PackageRecyclerVie
 		return mData.size();
 	}
 
-	public ApplicationInfo getItem(int i) {
+	public AppCatalog.App getItem(int i) {
 		return mData.get(i);
 	}
 
 	@Override
 	public void onBindViewHolder(@NonNull PackageNameViewHolder holder, int position) {
-		ApplicationInfo i = getItem(position);
+		AppCatalog.App i = getItem(position);
 		holder.apply(i);
 	}
 
+	@Override
+	public void onBindViewHolder(@NonNull PackageNameViewHolder holder, int position, @NonNull List<Object> payloads) {
+		if (payloads.contains(PAYLOAD_CHECKED)) {
+			holder.checkBox.setChecked(enabledSet.contains(getItem(position).getPackageName()));
+		} else {
+			super.onBindViewHolder(holder, position, payloads);
+		}
+	}
+
 	public class PackageNameViewHolder extends RecyclerView.ViewHolder {
 		private final View container;
 		private final ImageView appIcon;
@@ -117,23 +118,31 @@ class PackageRecyclerViewAdapter extends RecyclerView.Adapter<PackageRecyclerVie
 		}
 
 		@SuppressLint("ApplySharedPref")
-		public void apply(ApplicationInfo info) {
-			appIcon.setImageDrawable(pm.getApplicationIcon(info));
-			appName.setText(pm.getApplicationLabel(info));
-			pkgName.setText(info.packageName);
-			checkBox.setChecked(enabledArr.contains(info.packageName));
+		public void apply(AppCatalog.App info) {
+			appIcon.setTag(info.getPackageName());
+			appIcon.setImageDrawable(null);
+			catalog.loadIcon(info, icon -> {
+				if (!info.getPackageName().equals(appIcon.getTag())) return; // rebound in the meantime
+				if (icon != null)
+					appIcon.setImageBitmap(icon);
+				else
+					appIcon.setImageDrawable(pm.getDefaultActivityIcon());
+			});
+			appName.setText(info.getLabel());
+			pkgName.setText(info.getPackageName());
+			checkBox.setChecked(enabledSet.contains(info.getPackageName()));
 			container.setOnClickListener(view -> {
-				boolean enabled = enabledArr.contains(info.packageName);
-				enabled = !enabled;
-				checkBox.setChecked(enabled);
-				if (enabled) {
-					enabledArr.add(info.packageName);
-				} else {
-					enabledArr.remove(info.packageName);
+				if (!enabledSet.remove(info.getPackageName())) {
+					enabledSet.add(info.getPackageName());
+				}
+				// the row stays where it is, only its check box changes
+				int pos = getBindingAdapterPosition();
+				if (pos != RecyclerView.NO_POSITION) {
+					notifyItemChanged(pos, PAYLOAD_CHECKED);
 				}
-				prefs.edit().putStringSet(settingsKey, new HashSet<>(enabledArr)).commit();
+				prefs.edit().putStringSet(settingsKey, new HashSet<>(enabledSet)).commit();
 				if (callback != null) {
-					callback.accept(info.packageName);
+					callback.accept(info.getPackageName());
 				}
 			});
 		}
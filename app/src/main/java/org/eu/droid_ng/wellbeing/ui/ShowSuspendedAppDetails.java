@@ -21,11 +21,9 @@ import com.google.android.material.card.MaterialCardView;
 import org.eu.droid_ng.wellbeing.R;
 import org.eu.droid_ng.wellbeing.lib.State;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
-import org.eu.droid_ng.wellbeing.shim.PackageManagerDelegate;
 
 public class ShowSuspendedAppDetails extends AppCompatActivity {
 	private WellbeingService tw;
-	private PackageManagerDelegate pmd;
 
 	@SuppressLint("SetTextI18n")
 	@Override
@@ -39,7 +37,6 @@ public class ShowSuspendedAppDetails extends AppCompatActivity {
 		}
 		tw = WellbeingService.get();
 		PackageManager pm = getPackageManager();
-		pmd = new PackageManagerDelegate(pm);
 
 		setContentView(R.layout.activity_show_suspended_app_details);
 		setSupportActionBar(findViewById(R.id.topbar));
@@ -98,7 +95,7 @@ public class ShowSuspendedAppDetails extends AppCompatActivity {
 			container = findViewById(R.id.unknown);
 			findViewById(R.id.unsuspendbtn).setOnClickListener(v -> {
 				BUG("Used unknown unsuspend!!");
-				pmd.setPackagesSuspended(new String[]{packageName}, false, null, null, null);
+				tw.forceUnsuspend(packageName);
 				ShowSuspendedAppDetails.this.finish();
 			});
 			container.setVisibility(View.VISIBLE);
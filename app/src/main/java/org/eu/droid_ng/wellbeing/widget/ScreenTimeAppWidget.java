@@ -7,22 +7,29 @@ import android.appwidget.AppWidgetProvider;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.os.Bundle;
-import android.util.Log;
 import android.view.View;
 import android.widget.RemoteViews;
 
 import org.eu.droid_ng.wellbeing.R;
+import org.eu.droid_ng.wellbeing.lib.AppCatalog;
 import org.eu.droid_ng.wellbeing.lib.Utils;
 import org.eu.droid_ng.wellbeing.lib.WellbeingService;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 public class ScreenTimeAppWidget extends AppWidgetProvider {
+    public static final String ACTION_REFRESH = "org.eu.droid_ng.wellbeing.APPWIDGET_REFRESH";
+    // Sent by the repeating alarm of older versions. Its request code was the identity hash of
+    // the widget class in whatever process set it, so it can't be cancelled and runs until the
+    // next reboot. Ignore it instead of redrawing for it.
+    private static final String ACTION_LEGACY_UPDATE = "org.eu.droid_ng.wellbeing.APPWIDGET_UPDATE";
     private static final int[] appViewIds = new int[]{
             R.id.appwidget_app1_n, R.id.appwidget_app2_n, R.id.appwidget_app3_n
     };
@@ -32,13 +39,17 @@ public class ScreenTimeAppWidget extends AppWidgetProvider {
     private static final int[] appView3Ids = new int[]{
             R.id.appwidget_app1_l, R.id.appwidget_app2_l, R.id.appwidget_app3_l
     };
+    // What each widget currently shows, so we only push RemoteViews when something visible changed.
+    private static final HashMap<Integer, List<String>> lastRendered = new HashMap<>();
     private PendingIntent pendingIntent;
 
     @Override
     public void onReceive(Context context, Intent intent) {
+        if (ACTION_LEGACY_UPDATE.equals(intent.getAction()))
+            return;
         super.onReceive(context, intent);
 
-        if ("org.eu.droid_ng.wellbeing.APPWIDGET_UPDATE".equals(intent.getAction())) {
+        if (ACTION_REFRESH.equals(intent.getAction())) {
             AppWidgetManager awm = AppWidgetManager.getInstance(context);
             onUpdate(context, awm, awm.getAppWidgetIds(new ComponentName(context, ScreenTimeAppWidget.class)));
         }
@@ -56,56 +67,76 @@ public class ScreenTimeAppWidget extends AppWidgetProvider {
     @Override
     public void onEnabled(Context context) {
         checkInitialize(context);
+        WellbeingService.get().onScreenTimeWidgetsChanged();
     }
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         checkInitialize(context);
-        Utils.clearUsageStatsCache(WellbeingService.get().usm, context.getPackageManager(), true);
+        Utils.refreshUsageStats(WellbeingService.get().usm);
 
 
+        List<String> model = buildModel(context);
         for (int appWidgetId : appWidgetIds) {
-            appWidgetManager.updateAppWidget(appWidgetId,
-                    updateLayout(context, appWidgetManager, appWidgetId));
+            synchronized (lastRendered) {
+                if (model.equals(lastRendered.get(appWidgetId)))
+                    continue;
+                lastRendered.put(appWidgetId, model);
+            }
+            appWidgetManager.updateAppWidget(appWidgetId, updateLayout(context, model));
         }
     }
 
-    public void onDeleted(Context context, int[] appWidgetIds) {
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
+        synchronized (lastRendered) {
+            lastRendered.remove(appWidgetId);
+        }
+        onUpdate(context, appWidgetManager, new int[]{appWidgetId});
+    }
 
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        synchronized (lastRendered) {
+            for (int appWidgetId : appWidgetIds) {
+                lastRendered.remove(appWidgetId);
+            }
+        }
     }
 
     @Override
     public void onDisabled(Context context) {
-
+        WellbeingService.get().onScreenTimeWidgetsChanged();
     }
 
-    private RemoteViews updateLayout(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+    // screen time, then label and time of each of the top apps
+    private List<String> buildModel(Context context) {
         UsageStatsManager usm = WellbeingService.get().usm;
+        AppCatalog labels = AppCatalog.get(context);
+        List<String> model = new ArrayList<>();
+        model.add(formatDuration(Utils.getScreenTime(usm)));
+        String[] mostUsedPackages = Utils.getMostUsedPackages(usm);
+        for (int i = 0; i < appViewIds.length && i < mostUsedPackages.length; i++) {
+            model.add(labels.getLabel(mostUsedPackages[i]));
+            model.add(formatDuration(Utils.getTimeUsed(usm, mostUsedPackages[i])));
+        }
+        return model;
+    }
+
+    private RemoteViews updateLayout(Context context, List<String> model) {
         RemoteViews remoteViews = new RemoteViews(
                 context.getPackageName(), R.layout.appwidget_screen_time);
 
         remoteViews.setOnClickPendingIntent(R.id.appwidget_root, pendingIntent);
-        remoteViews.setTextViewText(R.id.appwidget_screen_time,
-                formatDuration(Utils.getScreenTime(usm)));
-        String[] mostUsedPackages = Utils.getMostUsedPackages(usm);
+        remoteViews.setTextViewText(R.id.appwidget_screen_time, model.get(0));
         for (int i = 0; i < appViewIds.length; i++) {
-            if (i >= mostUsedPackages.length) {
+            if (1 + i * 2 >= model.size()) {
                 remoteViews.setViewVisibility(appView3Ids[i], View.GONE);
                 remoteViews.setViewVisibility(appViewIds[i], View.GONE);
             } else {
                 remoteViews.setViewVisibility(appViewIds[i], View.VISIBLE);
                 remoteViews.setViewVisibility(appView3Ids[i], View.VISIBLE);
-                String packageName = mostUsedPackages[i];
-                String packageLabel = packageName;
-                try {
-                    packageLabel = WellbeingService.get()
-                            .getApplicationLabel(packageName).toString();
-                } catch (PackageManager.NameNotFoundException e) {
-                    Log.e("ScreenTimeAppWidget", "Failed to get app label!");
-                }
-
-                remoteViews.setTextViewText(appViewIds[i], packageLabel);
-                remoteViews.setTextViewText(appView2Ids[i], formatDuration(Utils.getTimeUsed(usm, packageName)));
+                remoteViews.setTextViewText(appViewIds[i], model.get(1 + i * 2));
+                remoteViews.setTextViewText(appView2Ids[i], model.get(2 + i * 2));
             }
         }
         return remoteViews;
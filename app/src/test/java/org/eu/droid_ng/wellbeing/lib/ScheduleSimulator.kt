@@ -0,0 +1,126 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import java.time.Instant
+import java.time.ZonedDateTime
+import java.util.*
+
+/*
+ * Runs the schedule machinery (ModeScheduleResolver, AlarmMultiplexer, DeadlineScheduler) on a
+ * VirtualClock. Instead of waiting for alarms, the simulator jumps straight to the next armed
+ * wakeup or scripted event, so a month of schedules replays in milliseconds. Every mode flip
+ * and deadline is recorded with its virtual time.
+ *
+ * Lives in the unit tests: the real AlarmManager wakeup and persistence are swapped for in-memory
+ * ones, the classes under test still link against android.jar (see testOptions in build.gradle).
+ *
+ *   val sim = ScheduleSimulator(ZonedDateTime.of(2024, 3, 25, 0, 0, 0, 0, zone))
+ *   sim.setTriggers(triggers)
+ *   sim.setCharging(sim.start.plusHours(22), true)
+ *   val result = sim.runUntil(sim.start.plusDays(30))
+ */
+class ScheduleSimulator(val start: ZonedDateTime) {
+	class Event(val time: ZonedDateTime, val source: String, val detail: String) {
+		override fun toString(): String {
+			return "$time $source $detail"
+		}
+	}
+
+	class Result(val events: List<Event>, val wakeups: Int, val elapsedNanos: Long)
+
+	private class Scripted(val epochMillis: Long, val seq: Int, val action: () -> Unit)
+
+	private val clock = VirtualClock(start.toInstant(), start.zone)
+	private val events = ArrayList<Event>()
+	private val scripted = TreeSet(compareBy<Scripted> { it.epochMillis }.thenBy { it.seq })
+	private var seq = 0
+	private var charging = false
+	private var wakeupMillis: Long? = null
+	private var wakeupIds: Array<String>? = null
+	private var wakeups = 0
+
+	private val alarms = AlarmMultiplexer(object : AlarmMultiplexer.Wakeup {
+		override fun arm(epochMillis: Long, ids: Array<String>) {
+			wakeupMillis = epochMillis
+			wakeupIds = ids
+		}
+
+		override fun cancel() {
+			wakeupMillis = null
+			wakeupIds = null
+		}
+	}, clock, this::onAlarmFired)
+	private val resolver = ModeScheduleResolver(ModeScheduleResolver.MemoryStore(), alarms, clock, { charging }) { id, active ->
+		record("mode", "$id ${if (active) "on" else "off"}")
+	}
+	private val deadlines = DeadlineScheduler(null, clock, { time ->
+		if (time == null) alarms.cancel("deadline") else alarms.set("deadline", time)
+	}) { d ->
+		record("deadline", "${d.kind} ${d.packageNames.joinToString(",")}")
+	}
+
+	fun setTriggers(triggers: Collection<Trigger>) {
+		resolver.setTriggers(triggers)
+	}
+
+	fun setCharging(time: ZonedDateTime, charging: Boolean) {
+		script(time) {
+			if (this.charging != charging) {
+				this.charging = charging
+				record("power", if (charging) "plugged" else "unplugged")
+				resolver.evaluate()
+			}
+		}
+	}
+
+	// The alarm clock goes off at time, it goes through the multiplexer like the real one.
+	fun setAlarmClock(time: ZonedDateTime) {
+		script(time) { alarms.set("alc", time.toInstant().toEpochMilli()) }
+	}
+
+	fun scheduleDeadline(time: ZonedDateTime, kind: DeadlineScheduler.Kind, packageNames: Array<String>, dueMillis: Long) {
+		script(time) { deadlines.schedule(kind, packageNames, dueMillis) }
+	}
+
+	fun runUntil(end: ZonedDateTime): Result {
+		val endMillis = end.toInstant().toEpochMilli()
+		val t0 = System.nanoTime()
+		while (true) {
+			val w = wakeupMillis
+			val s = if (scripted.isEmpty()) null else scripted.first()
+			val next = when {
+				w == null -> s?.epochMillis
+				s == null -> w
+				else -> minOf(w, s.epochMillis)
+			} ?: break
+			if (next > endMillis) break
+			clock.set(maxOf(next, clock.millis()))
+			if (s != null && s.epochMillis == next) {
+				scripted.pollFirst()
+				s.action()
+			} else {
+				wakeups++
+				val ids = wakeupIds
+				wakeupMillis = null // fired, the multiplexer re-arms for whatever is next
+				alarms.onWakeup(ids)
+			}
+		}
+		clock.set(maxOf(endMillis, clock.millis()))
+		return Result(ArrayList(events), wakeups, System.nanoTime() - t0)
+	}
+
+	private fun script(time: ZonedDateTime, action: () -> Unit) {
+		scripted.add(Scripted(time.toInstant().toEpochMilli(), seq++, action))
+	}
+
+	private fun onAlarmFired(id: String) {
+		when {
+			id == "alc" -> resolver.onAlarmClock()
+			id == "deadline" -> deadlines.fireDue()
+			id.startsWith(ModeScheduleResolver.ALARM_PREFIX) -> resolver.evaluate()
+		}
+	}
+
+	private fun record(source: String, detail: String) {
+		events.add(Event(ZonedDateTime.ofInstant(Instant.ofEpochMilli(clock.millis()), clock.zone), source, detail))
+	}
+}
@@ -0,0 +1,112 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+
+class ScheduleSimulatorTest {
+	companion object {
+		private val MONDAY = ZonedDateTime.of(2024, 3, 25, 0, 0, 0, 0, ZoneOffset.UTC)
+		// every test starts at monday noon, after the sunday night windows ended
+		private val WEEKDAYS = booleanArrayOf(true, true, true, true, true, false, false)
+		private val EVERY_DAY = BooleanArray(7) { true }
+
+		private fun trigger(iid: String, start: Int, end: Int, weekdays: BooleanArray,
+		                    needCharger: Boolean = false, endOnAlarm: Boolean = false): Trigger {
+			return TimeChargerTriggerCondition("bedtime", iid, true, start / 60, start % 60,
+				end / 60, end % 60, weekdays, needCharger, endOnAlarm)
+		}
+
+		private fun at(days: Long, hour: Long, minute: Long = 0): ZonedDateTime {
+			return MONDAY.plusDays(days).plusHours(hour).plusMinutes(minute)
+		}
+
+		private fun events(result: ScheduleSimulator.Result, source: String): List<String> {
+			return result.events.filter { it.source == source }.map { "${it.time.toLocalDateTime()} ${it.detail}" }
+		}
+	}
+
+	@Test
+	fun overnightWindowEndsOnTheNextDay() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(trigger("a", 22 * 60, 7 * 60, WEEKDAYS)))
+		val result = sim.runUntil(at(7, 0))
+		val expected = ArrayList<String>()
+		for (d in 25..29) {
+			expected.add("2024-03-${d}T22:00 bedtime on")
+			expected.add("2024-03-${d + 1}T07:00 bedtime off")
+		}
+		assertEquals(expected, events(result, "mode"))
+	}
+
+	@Test
+	fun overlappingTriggersFlipOnce() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(
+			trigger("a", 21 * 60, 23 * 60, EVERY_DAY),
+			trigger("b", 22 * 60, 1 * 60, EVERY_DAY)))
+		val result = sim.runUntil(at(1, 12))
+		assertEquals(listOf("2024-03-25T21:00 bedtime on", "2024-03-26T01:00 bedtime off"), events(result, "mode"))
+	}
+
+	@Test
+	fun chargerWindowFollowsThePlug() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(trigger("a", 22 * 60, 7 * 60, EVERY_DAY, needCharger = true)))
+		sim.setCharging(at(0, 23), true)
+		sim.setCharging(at(1, 2), false)
+		sim.setCharging(at(1, 21), true)
+		val result = sim.runUntil(at(2, 12))
+		assertEquals(listOf(
+			"2024-03-25T23:00 bedtime on",
+			"2024-03-26T02:00 bedtime off",
+			"2024-03-26T22:00 bedtime on",
+			"2024-03-27T07:00 bedtime off"), events(result, "mode"))
+	}
+
+	@Test
+	fun chargerWindowIsArmedWhileUnplugged() {
+		// the edge wakeups re-check the charger if the plug event went to a dead process
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(trigger("a", 22 * 60, 7 * 60, EVERY_DAY, needCharger = true)))
+		val result = sim.runUntil(at(1, 12))
+		assertEquals(emptyList<String>(), events(result, "mode"))
+		assertEquals(2, result.wakeups)
+	}
+
+	@Test
+	fun alarmClockEndsOnlyTheCurrentWindow() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(trigger("a", 22 * 60, 7 * 60, EVERY_DAY, endOnAlarm = true)))
+		sim.setAlarmClock(at(1, 6))
+		val result = sim.runUntil(at(2, 12))
+		assertEquals(listOf(
+			"2024-03-25T22:00 bedtime on",
+			"2024-03-26T06:00 bedtime off",
+			"2024-03-26T22:00 bedtime on",
+			"2024-03-27T07:00 bedtime off"), events(result, "mode"))
+	}
+
+	@Test
+	fun deadlinesFireInOrderAtTheirDueTime() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.scheduleDeadline(at(0, 13), DeadlineScheduler.Kind.APP_TIMER_BREAK, arrayOf("b"),
+			at(0, 13, 30).toInstant().toEpochMilli())
+		sim.scheduleDeadline(at(0, 13), DeadlineScheduler.Kind.FOCUS_MODE_APP_BREAK, arrayOf("a"),
+			at(0, 13, 15).toInstant().toEpochMilli())
+		val result = sim.runUntil(at(1, 0))
+		assertEquals(listOf(
+			"2024-03-25T13:15 FOCUS_MODE_APP_BREAK a",
+			"2024-03-25T13:30 APP_TIMER_BREAK b"), events(result, "deadline"))
+	}
+
+	@Test
+	fun onlyWakesUpForRealFlips() {
+		val sim = ScheduleSimulator(at(0, 12))
+		sim.setTriggers(listOf(trigger("a", 22 * 60, 7 * 60, WEEKDAYS)))
+		val result = sim.runUntil(at(28, 0))
+		assertEquals(40, events(result, "mode").size)
+		assertEquals(40, result.wakeups)
+	}
+}
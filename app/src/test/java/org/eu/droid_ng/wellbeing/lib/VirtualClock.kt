@@ -0,0 +1,24 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+
+// A clock that only moves when told to, see ScheduleSimulator.
+class VirtualClock(private var now: Instant, private val zone: ZoneId) : Clock() {
+	override fun getZone(): ZoneId {
+		return zone
+	}
+
+	override fun withZone(zone: ZoneId): Clock {
+		return VirtualClock(now, zone)
+	}
+
+	override fun instant(): Instant {
+		return now
+	}
+
+	fun set(epochMillis: Long) {
+		now = Instant.ofEpochMilli(epochMillis)
+	}
+}
@@ -0,0 +1,139 @@
+package org.eu.droid_ng.wellbeing.lib
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.time.ZonedDateTime
+
+class WeeklyScheduleTest {
+	companion object {
+		private val BERLIN = ZoneId.of("Europe/Berlin")
+		private val EVERY_DAY = BooleanArray(7) { true }
+		private val MONDAY_ONLY = booleanArrayOf(true, false, false, false, false, false, false)
+		private val SUNDAY_ONLY = booleanArrayOf(false, false, false, false, false, false, true)
+
+		private fun schedule(start: String, end: String, weekdays: BooleanArray): WeeklySchedule {
+			return WeeklySchedule(minuteOfDay(start), minuteOfDay(end), weekdays)
+		}
+
+		private fun minuteOfDay(time: String): Int {
+			val (h, m) = time.split(":").map { it.toInt() }
+			return h * 60 + m
+		}
+
+		// 2024-03-25 is a monday
+		private fun local(day: Int, time: String, month: Int = 3): LocalDateTime {
+			val m = minuteOfDay(time)
+			return LocalDateTime.of(2024, month, day, m / 60, m % 60)
+		}
+
+		private fun utc(day: Int, time: String): ZonedDateTime {
+			return ZonedDateTime.of(local(day, time), ZoneOffset.UTC)
+		}
+	}
+
+	@Test
+	fun overnightWindowBelongsToItsStartDay() {
+		val s = schedule("22:00", "07:00", MONDAY_ONLY)
+		assertFalse(s.isActive(local(25, "07:00")))
+		assertTrue(s.isActive(local(25, "22:00")))
+		assertTrue(s.isActive(local(26, "06:59")))
+		assertFalse(s.isActive(local(26, "07:00")))
+		assertFalse(s.isActive(local(26, "22:00")))
+	}
+
+	@Test
+	fun sundayNightWrapsIntoMonday() {
+		val s = schedule("22:00", "06:00", SUNDAY_ONLY)
+		assertTrue(s.isActive(local(31, "23:00")))
+		assertTrue(s.isActive(local(25, "00:00")))
+		assertTrue(s.isActive(local(25, "05:59")))
+		assertFalse(s.isActive(local(25, "06:00")))
+		assertEquals(utc(31, "22:00"), s.nextStart(utc(25, "12:00")))
+		assertEquals(utc(25, "06:00"), s.nextEnd(utc(24, "23:00")))
+	}
+
+	@Test
+	fun edgesCountIntoTheFollowingWeeks() {
+		val s = schedule("22:00", "07:00", MONDAY_ONLY)
+		val m = WeeklySchedule.minuteOfWeek(local(25, "12:00"))
+		assertEquals(10 * 60, s.minutesUntilEdge(m))
+		assertTrue(s.isStartEdge(m))
+		assertEquals(19 * 60, s.minutesUntilEdge(m, 1))
+		assertFalse(s.isStartEdge(m, 1))
+		assertEquals(WeeklySchedule.MINUTES_PER_WEEK + 10 * 60, s.minutesUntilEdge(m, 2))
+	}
+
+	@Test
+	fun emptyAndAlwaysOnSchedulesHaveNoTransitions() {
+		val empty = schedule("08:00", "08:00", EVERY_DAY)
+		assertTrue(empty.isEmpty())
+		assertFalse(empty.isActive(local(25, "08:00")))
+		assertNull(empty.nextTransition(utc(25, "12:00")))
+		assertEquals(-1, empty.minutesUntilEdge(0))
+
+		val always = WeeklySchedule.union(listOf(
+			schedule("00:00", "12:00", EVERY_DAY), schedule("12:00", "00:00", EVERY_DAY)))
+		assertTrue(always.isEmpty())
+		assertTrue(always.isActive(local(27, "12:00")))
+		assertNull(always.nextStart(utc(25, "12:00")))
+	}
+
+	@Test
+	fun overlappingWindowsUniteIntoOne() {
+		val s = WeeklySchedule.union(listOf(
+			schedule("21:00", "23:00", MONDAY_ONLY), schedule("22:00", "01:00", MONDAY_ONLY)))
+		val start = s.nextTransition(utc(25, "12:00"))!!
+		assertTrue(start.isStart)
+		assertEquals(utc(25, "21:00"), start.time)
+		// no end at 23:00, the second window is still running
+		val end = s.nextTransition(start.time)!!
+		assertFalse(end.isStart)
+		assertEquals(utc(26, "01:00"), end.time)
+		assertEquals(utc(25, "21:00").plusWeeks(1), s.nextStart(end.time))
+	}
+
+	@Test
+	fun touchingWindowsUniteIntoOne() {
+		val s = WeeklySchedule.union(listOf(
+			schedule("20:00", "22:00", EVERY_DAY), schedule("22:00", "23:00", EVERY_DAY)))
+		assertTrue(s.isActive(local(25, "22:00")))
+		assertEquals(utc(25, "23:00"), s.nextEnd(utc(25, "20:00")))
+		assertEquals(2 * 7, (0 until WeeklySchedule.MINUTES_PER_WEEK).count {
+			s.isActiveAt(it) != s.isActiveAt((it + WeeklySchedule.MINUTES_PER_WEEK - 1) % WeeklySchedule.MINUTES_PER_WEEK)
+		})
+	}
+
+	@Test
+	fun startInSpringGapMovesPastTheGap() {
+		// 2024-03-31 02:00 +01:00 jumps to 03:00 +02:00
+		val s = schedule("02:30", "05:00", EVERY_DAY)
+		val now = ZonedDateTime.of(local(31, "00:00"), BERLIN)
+		val start = s.nextStart(now)!!
+		assertEquals(local(31, "03:30"), start.toLocalDateTime())
+		assertEquals(ZoneOffset.ofHours(2), start.offset)
+		assertEquals(ZonedDateTime.of(local(31, "05:00"), BERLIN), s.nextEnd(start))
+		// the window is still on for the minutes that did exist
+		assertTrue(s.isActive(start))
+	}
+
+	@Test
+	fun startInFallOverlapUsesTheFirstOccurrence() {
+		// 2024-10-27 03:00 +02:00 goes back to 02:00 +01:00, 02:xx happens twice
+		val s = schedule("02:30", "04:00", EVERY_DAY)
+		val first = ZonedDateTime.ofLocal(local(27, "02:30", 10), BERLIN, ZoneOffset.ofHours(2))
+		val second = ZonedDateTime.ofLocal(local(27, "02:30", 10), BERLIN, ZoneOffset.ofHours(1))
+		assertEquals(first, s.nextStart(ZonedDateTime.of(local(27, "00:00", 10), BERLIN)))
+		// the end is only after the second pass through 02:30-03:00
+		assertEquals(ZonedDateTime.of(local(27, "04:00", 10), BERLIN), s.nextEnd(first))
+		// first occurrence already gone: take the second one rather than the next day
+		val now = ZonedDateTime.ofLocal(local(27, "02:15", 10), BERLIN, ZoneOffset.ofHours(1))
+		assertTrue(now.isAfter(first))
+		assertEquals(second, s.nextStart(now))
+	}
+}
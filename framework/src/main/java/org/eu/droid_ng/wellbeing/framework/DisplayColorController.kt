@@ -0,0 +1,51 @@
+package org.eu.droid_ng.wellbeing.framework
+
+import android.content.Context
+import android.util.Log
+import org.eu.droid_ng.wellbeing.shim.PackageManagerDelegate
+
+/*
+ * Global and per-app display saturation. Remembers what it last applied successfully and skips
+ * requests for the same level, so repeated bedtime / focus mode transitions don't go to the
+ * ColorDisplayManager (a reflective call plus an IPC each) when nothing changes. The levels
+ * live in system_server and outlast us, so a level we have not set ourselves yet is unknown
+ * and always applied.
+ *
+ * Thread safe.
+ */
+class DisplayColorController(context: Context) {
+	companion object {
+		private const val TAG = "DisplayColorController"
+	}
+
+	private val cdm = PackageManagerDelegate.getColorDisplayManager(context)
+	private var globalLevel: Int? = null
+	private val appLevels = HashMap<String, Int>()
+
+	@Synchronized
+	fun setSaturationLevel(level: Int): Boolean {
+		if (level == globalLevel) return true
+		if (!cdm.setSaturationLevel(level)) {
+			Log.e(TAG, "Failed to set saturation to $level")
+			return false
+		}
+		globalLevel = level
+		return true
+	}
+
+	// Returns the packages that failed.
+	@Synchronized
+	fun setAppSaturationLevel(packageNames: Array<String>, level: Int): Array<String> {
+		val failed = ArrayList<String>()
+		for (p in packageNames) {
+			if (appLevels[p] == level) continue
+			if (!cdm.setAppSaturationLevel(p, level)) {
+				failed.add(p)
+				continue
+			}
+			appLevels[p] = level
+		}
+		if (failed.isNotEmpty()) Log.e(TAG, "Failed to set saturation of ${failed.joinToString(",")} to $level")
+		return failed.toTypedArray()
+	}
+}
@@ -0,0 +1,41 @@
+package org.eu.droid_ng.wellbeing.framework
+
+import android.app.Activity
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.os.Bundle
+import android.util.Log
+
+/*
+ * The system talks to whoever suspended a package. For packages we suspended on behalf of the
+ * app, hand everything over to the app.
+ */
+class UnsuspendedManuallyReceiver : BroadcastReceiver() {
+	override fun onReceive(context: Context, intent: Intent) {
+		if (Intent.ACTION_PACKAGE_UNSUSPENDED_MANUALLY != intent.action) {
+			/* Make sure no one is trying to fool us */
+			return
+		}
+		val packageName = intent.getStringExtra(Intent.EXTRA_PACKAGE_NAME) ?: return
+		context.sendBroadcast(Intent(FrameworkBatch.ACTION_UNSUSPENDED_MANUALLY)
+			.setPackage(FrameworkBatch.APP_PACKAGE)
+			.putExtra(Intent.EXTRA_PACKAGE_NAME, packageName),
+			"org.eu.droid_ng.wellbeing.framework.permission.BIND")
+	}
+}
+
+class ShowSuspendedAppDetailsTrampoline : Activity() {
+	override fun onCreate(savedInstanceState: Bundle?) {
+		super.onCreate(savedInstanceState)
+		try {
+			startActivity(Intent(Intent.ACTION_SHOW_SUSPENDED_APP_DETAILS)
+				.setPackage(FrameworkBatch.APP_PACKAGE)
+				.putExtra(Intent.EXTRA_PACKAGE_NAME, intent.getStringExtra(Intent.EXTRA_PACKAGE_NAME))
+				.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK))
+		} catch (e: Exception) {
+			Log.e("WellbeingFramework", "Failed to show suspended app details", e)
+		}
+		finish()
+	}
+}
@@ -0,0 +1,140 @@
+package org.eu.droid_ng.wellbeing.framework
+
+import android.app.ActivityManager
+import android.app.usage.UsageEvents
+import android.app.usage.UsageStatsManager
+import android.content.Context
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.RemoteCallbackList
+import android.os.RemoteException
+import android.util.Log
+import org.eu.droid_ng.wellbeing.shim.ActivityManagerShim
+
+/*
+ * Pushes ACTIVITY_RESUMED / ACTIVITY_PAUSED usage events to registered listeners, instead of
+ * them polling UsageStatsManager. Uid importance only tells us when to look: once a uid crosses
+ * the foreground cutpoint we wait BATCH_MS, query the events since the last query (we hold
+ * PACKAGE_USAGE_STATS) and send them as one oneway call per listener. Those are the same
+ * events the listeners would have queried themselves, so their totals mean the same either way.
+ *
+ * The buffer is bounded: if listeners can't keep up (or a batch could not be delivered), the
+ * oldest events are dropped and the next batch is flagged as resync, so the listener knows to
+ * fill the gap from UsageStatsManager.
+ *
+ * We only watch uid importance while someone is listening.
+ */
+class UsageEventPublisher(private val context: Context) {
+	companion object {
+		private const val TAG = "UsageEventPublisher"
+		private const val BATCH_MS = 1000L
+		private const val MAX_BUFFERED = 512
+	}
+
+	private class Event(val packageName: String, val resumed: Boolean, val timestamp: Long)
+
+	private val handler = Handler(HandlerThread(TAG).apply { start() }.looper)
+	private val usm = context.getSystemService(UsageStatsManager::class.java)
+	private val listeners = object : RemoteCallbackList<IWellbeingEventListener>() {
+		override fun onCallbackDied(callback: IWellbeingEventListener?) {
+			handler.post { updateRegistration() }
+		}
+	}
+	// all below only touched on handler
+	private val buffer = ArrayDeque<Event>()
+	private var queriedUntil = 0L
+	private var resync = false
+	private var flushScheduled = false
+	private var token: Any? = null
+	private val flush = Runnable { flush() }
+
+	fun register(listener: IWellbeingEventListener) {
+		listeners.register(listener)
+		handler.post { updateRegistration() }
+	}
+
+	fun unregister(listener: IWellbeingEventListener) {
+		listeners.unregister(listener)
+		handler.post { updateRegistration() }
+	}
+
+	private fun updateRegistration() {
+		if (listeners.registeredCallbackCount > 0) {
+			if (token == null) {
+				queriedUntil = System.currentTimeMillis() // listeners query everything before registering
+				token = ActivityManagerShim.addOnUidImportanceListener(context, { _, _ ->
+					handler.post { scheduleFlush() }
+				}, ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND)
+			}
+		} else {
+			token?.let { ActivityManagerShim.removeOnUidImportanceListener(context, it) }
+			token = null
+			buffer.clear()
+			resync = false
+		}
+	}
+
+	private fun scheduleFlush() {
+		if (!flushScheduled) {
+			flushScheduled = true
+			handler.postDelayed(flush, BATCH_MS)
+		}
+	}
+
+	private fun collect() {
+		val now = System.currentTimeMillis()
+		if (now <= queriedUntil) return
+		val events = try {
+			usm.queryEvents(queriedUntil, now)
+		} catch (e: Exception) {
+			Log.e(TAG, "Failed to query usage events", e)
+			resync = true
+			return
+		} finally {
+			queriedUntil = now
+		}
+		val event = UsageEvents.Event()
+		while (events.hasNextEvent()) {
+			events.getNextEvent(event)
+			val type = event.eventType
+			if (type == UsageEvents.Event.ACTIVITY_RESUMED || type == UsageEvents.Event.ACTIVITY_PAUSED) {
+				enqueue(Event(event.packageName, type == UsageEvents.Event.ACTIVITY_RESUMED, event.timeStamp))
+			}
+		}
+	}
+
+	private fun enqueue(event: Event) {
+		if (buffer.size >= MAX_BUFFERED) {
+			buffer.removeFirst()
+			resync = true
+		}
+		buffer.addLast(event)
+	}
+
+	private fun flush() {
+		flushScheduled = false
+		if (token == null) return // nobody listens anymore
+		collect()
+		if (buffer.isEmpty() && !resync) return
+		val packageNames = Array(buffer.size) { buffer[it].packageName }
+		val resumed = BooleanArray(buffer.size) { buffer[it].resumed }
+		val timestamps = LongArray(buffer.size) { buffer[it].timestamp }
+		val wasResync = resync
+		buffer.clear()
+		resync = false
+		val n = listeners.beginBroadcast()
+		try {
+			for (i in 0 until n) {
+				try {
+					listeners.getBroadcastItem(i).onUsageEvents(packageNames, resumed, timestamps, wasResync)
+				} catch (e: RemoteException) {
+					// dead ones get dropped by the list, the others have to re-query
+					Log.w(TAG, "Failed to deliver usage events", e)
+					resync = true
+				}
+			}
+		} finally {
+			listeners.finishBroadcast()
+		}
+	}
+}
@@ -2,15 +2,30 @@ package org.eu.droid_ng.wellbeing.framework
 
 import android.content.Context
 import android.content.Intent
+import android.os.Bundle
 import android.os.RemoteException
 import android.provider.Settings
+import android.util.Log
+import org.eu.droid_ng.wellbeing.shim.PackageManagerDelegate
 import org.eu.droid_ng.wellbeing.shim.UserHandlerShim
 
 class WellbeingFrameworkServiceImpl(private val context: Context) :
 	IWellbeingFrameworkService.Stub() {
+	private val pmd = PackageManagerDelegate(context.packageManager)
+	private val displayColor by lazy { DisplayColorController(context) }
+	private val batchLock = Any()
+	private val usageEvents by lazy { UsageEventPublisher(context) }
+
 	@Throws(RemoteException::class)
 	override fun versionCode(): Int {
-		return 1
+		return 6
+	}
+
+	@Throws(RemoteException::class)
+	override fun capabilities(): Long {
+		return FrameworkCapabilities.AIRPLANE_MODE or FrameworkCapabilities.BATCH or
+				FrameworkCapabilities.SUSPEND or FrameworkCapabilities.USAGE_EVENTS or
+				FrameworkCapabilities.DISPLAY_COLOR
 	}
 
 	@Throws(RemoteException::class)
@@ -24,4 +39,161 @@ class WellbeingFrameworkServiceImpl(private val context: Context) :
 				.putExtra("state", value), UserHandlerShim.ALL
 		)
 	}
-}
\ No newline at end of file
+
+	override fun executeBatch(version: Int, ops: Array<Bundle?>?, callback: IWellbeingBatchCallback?) {
+		val results = IntArray(ops?.size ?: 0)
+		if (ops != null) {
+			if (version != FrameworkBatch.VERSION) {
+				results.fill(FrameworkBatch.RESULT_UNSUPPORTED)
+			} else {
+				// nothing is applied unless every op is valid
+				ops.forEachIndexed { i, op -> results[i] = validate(op) }
+				if (results.all { it == FrameworkBatch.RESULT_OK }) {
+					synchronized(batchLock) {
+						ops.forEachIndexed { i, op -> results[i] = apply(op!!) }
+					}
+				} else {
+					results.forEachIndexed { i, r ->
+						if (r == FrameworkBatch.RESULT_OK) results[i] = FrameworkBatch.RESULT_SKIPPED
+					}
+				}
+			}
+		}
+		try {
+			callback?.onBatchResult(results)
+		} catch (e: RemoteException) {
+			Log.e(TAG, "Failed to report batch result", e)
+		}
+	}
+
+	private fun validate(op: Bundle?): Int {
+		if (op == null) return FrameworkBatch.RESULT_INVALID
+		return when (op.getInt(FrameworkBatch.KEY_OP, -1)) {
+			FrameworkBatch.OP_AIRPLANE_MODE -> valid(op.containsKey(FrameworkBatch.KEY_ENABLED))
+			FrameworkBatch.OP_SATURATION -> valid(op.getInt(FrameworkBatch.KEY_LEVEL, -1) in 0..100)
+			FrameworkBatch.OP_APP_SATURATION -> {
+				val pkgs = op.getStringArray(FrameworkBatch.KEY_PACKAGES)
+				valid(op.getInt(FrameworkBatch.KEY_LEVEL, -1) in 0..100 && !pkgs.isNullOrEmpty() && pkgs.none { it.isNullOrEmpty() })
+			}
+			FrameworkBatch.OP_SUSPEND -> {
+				val pkgs = op.getStringArray(FrameworkBatch.KEY_PACKAGES)
+				valid(op.containsKey(FrameworkBatch.KEY_ENABLED) && !pkgs.isNullOrEmpty() && pkgs.none { it.isNullOrEmpty() } &&
+						(op.getBundle(FrameworkBatch.KEY_DIALOG)?.let { validDialog(it) } ?: true))
+			}
+			else -> FrameworkBatch.RESULT_UNSUPPORTED
+		}
+	}
+
+	private fun validDialog(d: Bundle): Boolean {
+		return d.getString(FrameworkBatch.KEY_TITLE) != null && d.getString(FrameworkBatch.KEY_MESSAGE) != null &&
+				d.getString(FrameworkBatch.KEY_BUTTON_TEXT) != null
+	}
+
+	private fun valid(b: Boolean): Int {
+		return if (b) FrameworkBatch.RESULT_OK else FrameworkBatch.RESULT_INVALID
+	}
+
+	private fun apply(op: Bundle): Int {
+		return try {
+			when (op.getInt(FrameworkBatch.KEY_OP)) {
+				FrameworkBatch.OP_AIRPLANE_MODE -> {
+					setAirplaneMode(op.getBoolean(FrameworkBatch.KEY_ENABLED))
+					FrameworkBatch.RESULT_OK
+				}
+				FrameworkBatch.OP_SATURATION -> ok(displayColor.setSaturationLevel(op.getInt(FrameworkBatch.KEY_LEVEL)))
+				FrameworkBatch.OP_APP_SATURATION -> ok(displayColor.setAppSaturationLevel(
+					op.getStringArray(FrameworkBatch.KEY_PACKAGES)!!, op.getInt(FrameworkBatch.KEY_LEVEL)).isEmpty())
+				FrameworkBatch.OP_SUSPEND -> ok(suspendPackages(arrayOf(op)).isEmpty())
+				else -> FrameworkBatch.RESULT_UNSUPPORTED
+			}
+		} catch (e: Exception) {
+			Log.e(TAG, "Batch op failed", e)
+			FrameworkBatch.RESULT_FAILED
+		}
+	}
+
+	/*
+	 * Specs with the same suspend flag and dialog go out in one PackageManager call. Packages of
+	 * malformed specs are reported as failed without touching them.
+	 */
+	@Throws(RemoteException::class)
+	override fun suspendPackages(specs: Array<Bundle?>?): Array<String> {
+		val failed = ArrayList<String>()
+		val groups = LinkedHashMap<List<Any?>, ArrayList<String>>()
+		val dialogs = HashMap<List<Any?>, Bundle?>()
+		specs?.forEach { spec ->
+			val pkgs = spec?.getStringArray(FrameworkBatch.KEY_PACKAGES)?.filterNotNull() ?: return@forEach
+			if (validate(spec) != FrameworkBatch.RESULT_OK) {
+				failed.addAll(pkgs)
+				return@forEach
+			}
+			val suspend = spec.getBoolean(FrameworkBatch.KEY_ENABLED)
+			val d = if (suspend) spec.getBundle(FrameworkBatch.KEY_DIALOG) else null
+			val key = listOf(suspend, d?.getString(FrameworkBatch.KEY_TITLE), d?.getString(FrameworkBatch.KEY_MESSAGE),
+				d?.getString(FrameworkBatch.KEY_BUTTON_TEXT), d?.getInt(FrameworkBatch.KEY_BUTTON_ACTION),
+				d?.getInt(FrameworkBatch.KEY_ICON))
+			groups.getOrPut(key) { ArrayList() }.addAll(pkgs)
+			dialogs[key] = d
+		}
+		synchronized(batchLock) {
+			groups.forEach { (key, pkgs) ->
+				try {
+					failed.addAll(pmd.setPackagesSuspended(pkgs.toTypedArray(), key[0] as Boolean,
+						null, null, dialogs[key]?.let { buildDialog(it) }))
+				} catch (e: Exception) {
+					Log.e(TAG, "Failed to (un)suspend ${pkgs.joinToString(",")}", e)
+					failed.addAll(pkgs)
+				}
+			}
+		}
+		return failed.toTypedArray()
+	}
+
+	@Throws(RemoteException::class)
+	override fun registerEventListener(listener: IWellbeingEventListener?) {
+		listener?.let { usageEvents.register(it) }
+	}
+
+	@Throws(RemoteException::class)
+	override fun unregisterEventListener(listener: IWellbeingEventListener?) {
+		listener?.let { usageEvents.unregister(it) }
+	}
+
+	@Throws(RemoteException::class)
+	override fun setSaturationLevel(level: Int): Boolean {
+		if (level !in 0..100) return false
+		synchronized(batchLock) {
+			return displayColor.setSaturationLevel(level)
+		}
+	}
+
+	@Throws(RemoteException::class)
+	override fun setAppSaturationLevel(packageNames: Array<String?>?, level: Int): Array<String> {
+		val pkgs = packageNames?.filterNotNull()?.filter { it.isNotEmpty() }?.toTypedArray() ?: return arrayOf()
+		if (level !in 0..100) return pkgs
+		synchronized(batchLock) {
+			return displayColor.setAppSaturationLevel(pkgs, level)
+		}
+	}
+
+	private fun buildDialog(d: Bundle): PackageManagerDelegate.SuspendDialogInfo {
+		val b = PackageManagerDelegate.SuspendDialogInfo.Builder()
+			.setTitle(d.getString(FrameworkBatch.KEY_TITLE)!!)
+			.setMessage(d.getString(FrameworkBatch.KEY_MESSAGE)!!)
+			.setNeutralButtonText(d.getString(FrameworkBatch.KEY_BUTTON_TEXT)!!)
+			.setNeutralButtonAction(d.getInt(FrameworkBatch.KEY_BUTTON_ACTION))
+		when (d.getInt(FrameworkBatch.KEY_ICON)) {
+			FrameworkBatch.ICON_FOCUS_MODE -> b.setIcon(R.drawable.ic_focus_mode)
+			FrameworkBatch.ICON_APP_BLOCKING -> b.setIcon(R.drawable.ic_baseline_app_blocking_24)
+		}
+		return b.build()
+	}
+
+	private fun ok(b: Boolean): Int {
+		return if (b) FrameworkBatch.RESULT_OK else FrameworkBatch.RESULT_FAILED
+	}
+
+	companion object {
+		private const val TAG = "WellbeingFramework"
+	}
+}
@@ -0,0 +1,111 @@
+package org.eu.droid_ng.wellbeing.framework;
+
+import android.os.Bundle;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/* Wire format of IWellbeingFrameworkService.executeBatch, shared by both sides.
+ *
+ * A batch is an ordered array of op bundles. The framework validates every op before applying
+ * any of them, so a batch with a malformed or unknown op changes nothing. Valid batches are
+ * applied in order, and no other batch runs in between. */
+public final class FrameworkBatch {
+	/* Bump when the meaning of an existing op changes, adding ops is fine. */
+	public static final int VERSION = 1;
+
+	public static final String KEY_OP = "op";
+	public static final String KEY_ENABLED = "enabled";
+	public static final String KEY_LEVEL = "level";
+	public static final String KEY_PACKAGES = "packages";
+	public static final String KEY_DIALOG = "dialog";
+	public static final String KEY_TITLE = "title";
+	public static final String KEY_MESSAGE = "message";
+	public static final String KEY_BUTTON_TEXT = "button_text";
+	public static final String KEY_BUTTON_ACTION = "button_action";
+	public static final String KEY_ICON = "icon";
+
+	/* Icons of the suspend dialog, the framework has its own copies of our drawables. */
+	public static final int ICON_NONE = 0;
+	public static final int ICON_FOCUS_MODE = 1;
+	public static final int ICON_APP_BLOCKING = 2;
+
+	/* Packages suspended by the framework report back to the framework, it forwards to us. */
+	public static final String APP_PACKAGE = "org.eu.droid_ng.wellbeing";
+	public static final String ACTION_UNSUSPENDED_MANUALLY =
+			"org.eu.droid_ng.wellbeing.framework.PACKAGE_UNSUSPENDED_MANUALLY";
+
+	public static final int OP_AIRPLANE_MODE = 1;
+	public static final int OP_SATURATION = 2;
+	public static final int OP_SUSPEND = 3;
+	/* Needs FrameworkCapabilities.DISPLAY_COLOR. */
+	public static final int OP_APP_SATURATION = 4;
+
+	public static final int RESULT_OK = 0;
+	/* The framework does not know this op or batch version. */
+	public static final int RESULT_UNSUPPORTED = 1;
+	/* The op is malformed. */
+	public static final int RESULT_INVALID = 2;
+	/* Applying the op failed. */
+	public static final int RESULT_FAILED = 3;
+	/* Not applied, because another op of the batch was rejected. */
+	public static final int RESULT_SKIPPED = 4;
+
+	private FrameworkBatch() {}
+
+	@NonNull
+	public static Bundle airplaneMode(boolean enabled) {
+		Bundle b = new Bundle();
+		b.putInt(KEY_OP, OP_AIRPLANE_MODE);
+		b.putBoolean(KEY_ENABLED, enabled);
+		return b;
+	}
+
+	@NonNull
+	public static Bundle saturation(@IntRange(from = 0, to = 100) int level) {
+		Bundle b = new Bundle();
+		b.putInt(KEY_OP, OP_SATURATION);
+		b.putInt(KEY_LEVEL, level);
+		return b;
+	}
+
+	@NonNull
+	public static Bundle appSaturation(@NonNull String[] packageNames, @IntRange(from = 0, to = 100) int level) {
+		Bundle b = new Bundle();
+		b.putInt(KEY_OP, OP_APP_SATURATION);
+		b.putStringArray(KEY_PACKAGES, packageNames);
+		b.putInt(KEY_LEVEL, level);
+		return b;
+	}
+
+	@NonNull
+	public static Bundle suspend(@NonNull String[] packageNames, boolean suspend) {
+		return suspend(packageNames, suspend, null);
+	}
+
+	/* Also a spec for IWellbeingFrameworkService.suspendPackages, dialog is ignored when unsuspending. */
+	@NonNull
+	public static Bundle suspend(@NonNull String[] packageNames, boolean suspend, @Nullable Bundle dialog) {
+		Bundle b = new Bundle();
+		b.putInt(KEY_OP, OP_SUSPEND);
+		b.putStringArray(KEY_PACKAGES, packageNames);
+		b.putBoolean(KEY_ENABLED, suspend);
+		if (dialog != null)
+			b.putBundle(KEY_DIALOG, dialog);
+		return b;
+	}
+
+	/* Texts are final, localized strings. The system inserts the app name for %1$s in message. */
+	@NonNull
+	public static Bundle dialog(@NonNull String title, @NonNull String message, @NonNull String buttonText,
+	                            int buttonAction, int icon) {
+		Bundle b = new Bundle();
+		b.putString(KEY_TITLE, title);
+		b.putString(KEY_MESSAGE, message);
+		b.putString(KEY_BUTTON_TEXT, buttonText);
+		b.putInt(KEY_BUTTON_ACTION, buttonAction);
+		b.putInt(KEY_ICON, icon);
+		return b;
+	}
+}
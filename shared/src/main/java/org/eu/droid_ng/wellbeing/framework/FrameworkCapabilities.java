@@ -0,0 +1,23 @@
+package org.eu.droid_ng.wellbeing.framework;
+
+/* Feature bits of IWellbeingFrameworkService.capabilities(). Frameworks older than
+ * versionCode 5 don't have that call, fromVersion() knows what they could do. */
+public final class FrameworkCapabilities {
+	public static final long AIRPLANE_MODE = 1;
+	public static final long BATCH = 1 << 1;
+	public static final long SUSPEND = 1 << 2;
+	public static final long USAGE_EVENTS = 1 << 3;
+	/* Global and per-app saturation, also as batch ops. */
+	public static final long DISPLAY_COLOR = 1 << 4;
+
+	private FrameworkCapabilities() {}
+
+	public static long fromVersion(int versionCode) {
+		long caps = 0;
+		if (versionCode >= 1) caps |= AIRPLANE_MODE;
+		if (versionCode >= 2) caps |= BATCH;
+		if (versionCode >= 3) caps |= SUSPEND;
+		if (versionCode >= 4) caps |= USAGE_EVENTS;
+		return caps;
+	}
+}
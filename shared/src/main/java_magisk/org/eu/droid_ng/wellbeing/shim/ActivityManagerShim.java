@@ -0,0 +1,66 @@
+package org.eu.droid_ng.wellbeing.shim;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+@SuppressWarnings("JavaReflectionMemberAccess")
+public class ActivityManagerShim {
+    public interface UidImportanceListener {
+        void onUidImportance(int uid, int importance);
+    }
+
+    private static Class<?> realListener;
+    private static Method add, remove;
+
+    static {
+        try {
+            realListener = Class.forName("android.app.ActivityManager$OnUidImportanceListener");
+            add = ActivityManager.class.getMethod("addOnUidImportanceListener", realListener, int.class);
+            remove = ActivityManager.class.getMethod("removeOnUidImportanceListener", realListener);
+        } catch (ReflectiveOperationException e) {
+            Log.e("ActivityManagerShim", "This would not occur if the app was built-in into the ROM:", e);
+            realListener = null;
+        }
+    }
+
+    /* Returns a token for removeOnUidImportanceListener, or null if not supported. */
+    @Nullable
+    public static Object addOnUidImportanceListener(@NonNull Context context,
+                                                    @NonNull UidImportanceListener listener, int importanceCutpoint) {
+        if (realListener == null) return null;
+        Object real = Proxy.newProxyInstance(realListener.getClassLoader(), new Class<?>[]{realListener},
+                (proxy, method, args) -> {
+                    if ("onUidImportance".equals(method.getName())) {
+                        listener.onUidImportance((int) args[0], (int) args[1]);
+                        return null;
+                    }
+                    switch (method.getName()) {
+                        case "equals": return proxy == args[0];
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "toString": return "UidImportanceListener@" + System.identityHashCode(proxy);
+                        default: return null;
+                    }
+                });
+        try {
+            add.invoke(context.getSystemService(ActivityManager.class), real, importanceCutpoint);
+            return real;
+        } catch (ReflectiveOperationException e) {
+            Log.e("ActivityManagerShim", "Failed to add uid importance listener", e);
+            return null;
+        }
+    }
+
+    public static void removeOnUidImportanceListener(@NonNull Context context, @NonNull Object token) {
+        if (realListener == null) return;
+        try {
+            remove.invoke(context.getSystemService(ActivityManager.class), token);
+        } catch (ReflectiveOperationException ignored) {}
+    }
+}
@@ -49,6 +49,8 @@ public class PackageManagerDelegate {
 	private static Method setNeutralButtonTextResId;
 	private static Method getNeutralButtonAction;
 	private static Method setNeutralButtonAction;
+	private static Method setTitle;
+	private static Method setNeutralButtonText;
 
 	private static Method usmCall;
 	private static Method usmCall2;
@@ -103,6 +105,13 @@ public class PackageManagerDelegate {
 				getNeutralButtonAction = null;
 				setNeutralButtonAction = null;
 			}
+			try { // Android 13+
+				setTitle = realSuspendDialogInfoBuilder.getMethod("setTitle", String.class);
+				setNeutralButtonText = realSuspendDialogInfoBuilder.getMethod("setNeutralButtonText", String.class);
+			} catch (ReflectiveOperationException e) {
+				setTitle = null;
+				setNeutralButtonText = null;
+			}
 			success = true;
 		} catch (ReflectiveOperationException e) {
 			Log.e("PackageManagerDelegate", // Log why it's crashing
@@ -458,6 +467,23 @@ public class PackageManagerDelegate {
 				return this;
 			}
 
+			/**
+			 * Set the title text, takes precedence over a resource id set via
+			 * {@link #setTitle(int)}. Ignored before Android 13.
+			 *
+			 * @param title The title.
+			 * @return this builder object.
+			 */
+			@NonNull
+			public Builder setTitle(@NonNull String title) {
+				if (success && realB != null && setTitle != null) {
+					try {
+						setTitle.invoke(realB, title);
+					} catch (ReflectiveOperationException ignored) {}
+				}
+				return this;
+			}
+
 			/**
 			 * Set the text to show in the body of the dialog. Ignored if a resource id is set via
 			 * {@link #setMessage(int)}.
@@ -524,6 +550,23 @@ public class PackageManagerDelegate {
 				return this;
 			}
 
+			/**
+			 * Set the text of the neutral button, takes precedence over a resource id set via
+			 * {@link #setNeutralButtonText(int)}. Ignored before Android 13.
+			 *
+			 * @param text The button text
+			 * @return this builder object.
+			 */
+			@NonNull
+			public Builder setNeutralButtonText(@NonNull String text) {
+				if (success && realB != null && setNeutralButtonText != null) {
+					try {
+						setNeutralButtonText.invoke(realB, text);
+					} catch (ReflectiveOperationException ignored) {}
+				}
+				return this;
+			}
+
 			/**
 			 * Set the action expected to happen on neutral button tap. Defaults to
 			 * {@link #BUTTON_ACTION_MORE_DETAILS} if this is not provided.
@@ -558,6 +601,10 @@ public class PackageManagerDelegate {
 		return success;
 	}
 
+	public static boolean canSetDialogTexts() {
+		return success && setTitle != null && setNeutralButtonText != null;
+	}
+
 	public static boolean canSetNeutralButtonAction() {
 		return success && setNeutralButtonAction != null;
 	}
@@ -0,0 +1,28 @@
+package org.eu.droid_ng.wellbeing.shim;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+public class ActivityManagerShim {
+    public interface UidImportanceListener {
+        void onUidImportance(int uid, int importance);
+    }
+
+    /* Returns a token for removeOnUidImportanceListener, or null if not supported. */
+    @Nullable
+    public static Object addOnUidImportanceListener(@NonNull Context context,
+                                                    @NonNull UidImportanceListener listener, int importanceCutpoint) {
+        ActivityManager am = context.getSystemService(ActivityManager.class);
+        ActivityManager.OnUidImportanceListener real = listener::onUidImportance;
+        am.addOnUidImportanceListener(real, importanceCutpoint);
+        return real;
+    }
+
+    public static void removeOnUidImportanceListener(@NonNull Context context, @NonNull Object token) {
+        context.getSystemService(ActivityManager.class)
+                .removeOnUidImportanceListener((ActivityManager.OnUidImportanceListener) token);
+    }
+}
@@ -2,6 +2,7 @@ package org.eu.droid_ng.wellbeing.shim;
 
 import android.content.pm.PackageManager;
 import android.hardware.display.ColorDisplayManager;
+import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
@@ -85,7 +86,7 @@ public class PackageManagerDelegate {
 		public boolean isDisplayWhiteBalanceAvailable(Context context);
 	}
 
-	public IColorDisplayManager getColorDisplayManager(Context ctx) {
+	public static IColorDisplayManager getColorDisplayManager(Context ctx) {
 		ColorDisplayManager cdm = ctx.getSystemService(ColorDisplayManager.class);
 		return new IColorDisplayManager() {
 			@Override
@@ -258,6 +259,20 @@ public class PackageManagerDelegate {
 				return this;
 			}
 
+			/**
+			 * Set the title text, takes precedence over a resource id set via
+			 * {@link #setTitle(int)}. Ignored before Android 13.
+			 *
+			 * @param title The title.
+			 * @return this builder object.
+			 */
+			@NonNull
+			public Builder setTitle(@NonNull String title) {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+					realb.setTitle(title);
+				return this;
+			}
+
 			/**
 			 * Set the text to show in the body of the dialog. Ignored if a resource id is set via
 			 * {@link #setMessage(int)}.
@@ -312,6 +327,20 @@ public class PackageManagerDelegate {
 				return this;
 			}
 
+			/**
+			 * Set the text of the neutral button, takes precedence over a resource id set via
+			 * {@link #setNeutralButtonText(int)}. Ignored before Android 13.
+			 *
+			 * @param text The button text
+			 * @return this builder object.
+			 */
+			@NonNull
+			public Builder setNeutralButtonText(@NonNull String text) {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+					realb.setNeutralButtonText(text);
+				return this;
+			}
+
 			/**
 			 * Set the action expected to happen on neutral button tap. Defaults to
 			 * {@link #BUTTON_ACTION_MORE_DETAILS} if this is not provided.
@@ -338,6 +367,10 @@ public class PackageManagerDelegate {
 		}
 	}
 
+	public static boolean canSetDialogTexts() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU;
+	}
+
 	public static boolean canSuspend() {
 		return true;
 	}